@@ -0,0 +1,84 @@
+package de.topocare.topocareXiota.iotaMachineWallet.pow;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jota.IotaLocalPoW;
+import jota.pow.pearldiver.PearlDiverLocalPoW;
+
+/**
+ * Compares ParallelLocalPoW with jota's PearlDiverLocalPoW on one transaction.
+ * <p>
+ * Run with <code>gradle jmh</code>. The time of a nonce search varies with the
+ * transaction, so each invocation uses the next of several random transactions.
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LocalPoWBenchmark {
+
+	private static final int TRANSACTION_TRYTES = 2673;
+	private static final int TRANSACTIONS = 16;
+	private static final String TRYTE_ALPHABET = "9ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+	@Param({ "9", "14" })
+	public int minWeightMagnitude;
+
+	/**
+	 * Threads of ParallelLocalPoW, 0 = all cores.
+	 */
+	@Param({ "0" })
+	public int threads;
+
+	private IotaLocalPoW pearlDiver;
+	private IotaLocalPoW parallel;
+	private String[] transactions;
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		pearlDiver = new PearlDiverLocalPoW();
+		parallel = new ParallelLocalPoW(threads);
+
+		Random random = new Random(42);
+		transactions = new String[TRANSACTIONS];
+		for (int t = 0; t < TRANSACTIONS; t++) {
+			StringBuilder trytes = new StringBuilder(TRANSACTION_TRYTES);
+			for (int i = 0; i < TRANSACTION_TRYTES; i++)
+				trytes.append(TRYTE_ALPHABET.charAt(random.nextInt(TRYTE_ALPHABET.length())));
+			transactions[t] = trytes.toString();
+		}
+	}
+
+	@Benchmark
+	public String pearlDiver() {
+		return pearlDiver.performPoW(nextTransaction(), minWeightMagnitude);
+	}
+
+	@Benchmark
+	public String parallel() {
+		return parallel.performPoW(nextTransaction(), minWeightMagnitude);
+	}
+
+	private String nextTransaction() {
+		next = (next + 1) % TRANSACTIONS;
+		return transactions[next];
+	}
+}
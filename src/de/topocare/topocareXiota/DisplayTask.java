@@ -2,6 +2,7 @@ package de.topocare.topocareXiota;
 
 import de.topocare.topocareXiota.Mediator;
 import de.topocare.topocareXiota.iotaMachineWallet.*;
+import de.topocare.topocareXiota.iotaMachineWallet.address.IotaAddress;
 
 /**
  * Console-output of the current state of wallet, pools, transactions and GPS.
@@ -30,13 +31,21 @@ public class DisplayTask implements Runnable {
 
 		str += "Wallet-Status: " + wallet.walletState + "\n";
 		str += "GPS: " + mediator.gpsData + "\n";
-		str += "Production-units since program-start: " + mediator.unitsSinceProgramStart + "\n\n";
+		str += "Production-units since program-start: " + mediator.unitsSinceProgramStart + "\n";
+		IotaAddress receivingAddress = mediator.getReceivingAddress();
+		str += "Receiving address: "
+				+ (receivingAddress != null ? receivingAddress.getAddressWithChecksum() : "none checked yet") + "\n\n";
 
 		str += "Pools:\n";
 
 		str += "  Input-Pool:\n";
 		str += "   Available: " + wallet.receivingPool.getAvailableBalance() + " Iota on "
 				+ wallet.receivingPool.getAvailableBalance_addresses() + " addresses\n";
+		str += "   Polled: " + wallet.receivingPool.getLastPolledCount() + " addresses (hot: "
+				+ wallet.receivingPool.getHotAddressCount() + ")\n";
+		str += "   Window: " + wallet.receivingPool.getWindowSize() + " addresses, "
+				+ wallet.receivingPool.getFreshAddressCount() + " fresh, " + wallet.receivingPool.getRetiredCount()
+				+ " retired\n";
 		str += "  Available-Pool:\n";
 		str += "   Available: " + wallet.useablePool.getBalance() + " Iota on " + wallet.useablePool.getAddressCount()
 				+ " addresses\n";
@@ -47,6 +56,9 @@ public class DisplayTask implements Runnable {
 				+ wallet.productionPool.getAddressCount() + " Units\n";
 		str += "   Expected: " + wallet.productionPool.getExpectedBalance() + " Iota as "
 				+ wallet.productionPool.getExpectedAddressCount() + " Units\n";
+		str += " " + wallet.transactionManager.refillPlanner + "\n";
+
+		str += "  Free-address reservoir: " + wallet.freeAddressGenerator.getReservoirSize() + " addresses\n";
 
 		str += "\n";
 
@@ -58,10 +70,18 @@ public class DisplayTask implements Runnable {
 		str += "Transaction-Bundles\n";
 		str += "Promotions: " + wallet.transactionManager.promotions + "   Reattachments: "
 				+ wallet.transactionManager.reattachments + "\n";
-		str += " Pre-POW: " + wallet.transactionManager.transactionCounterPreServer.get() + "\n";
-		str += "     POW: " + wallet.transactionManager.transactionCounterAtServer.get() + "\n";
+		str += " Pre-POW: " + wallet.transactionManager.powScheduler.getPreparing() + "\n";
+		str += " POW-Queue: " + wallet.transactionManager.powScheduler.getQueueDepth() + "   (wait avg: "
+				+ wallet.transactionManager.powScheduler.getAverageWaitMillis() + " ms, max: "
+				+ wallet.transactionManager.powScheduler.getMaxWaitMillis() + " ms)\n";
+		str += "     POW: " + wallet.transactionManager.powScheduler.getRunning() + " of "
+				+ wallet.transactionManager.powScheduler.getWorkerCount() + " workers\n";
+		str += "  Lifecycle: " + wallet.transactionManager.lifecycleToString() + "\n";
+		str += wallet.transactionManager.attachMetrics + "\n";
+		str += IotaConfig.gateway + "\n";
 		str += " waiting for confirmation: " + wallet.transactionManager.transsactionCounterAtConfirmation.get()
 				+ "\n";
+		str += " Confirmations\n" + wallet.transactionManager.promotionPolicy.histogramsToString() + "\n";
 
 		System.out.println(str);
 
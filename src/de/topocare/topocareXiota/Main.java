@@ -4,6 +4,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import de.topocare.topocareXiota.iotaMachineWallet.IotaConfig;
 import de.topocare.topocareXiota.iotaMachineWallet.IotaMachineWalletCore;
 import de.topocare.topocareXiota.iotaMachineWallet.PropertiesImport;
 import de.topocare.topocareXiota.iotaMachineWallet.tangleMonitoring.IotaLoopTask;
@@ -24,9 +25,18 @@ public class Main {
 		
 		// define IOTA-wallet
 		System.out.println("starting wallet-core");
+		long walletStart = System.currentTimeMillis();
 		IotaMachineWalletCore wallet = new IotaMachineWalletCore(propertiesImport.receivingAddress_first, propertiesImport.receivingAddress_last, propertiesImport.searchKeyIndexFirst, propertiesImport.searchKeyIndexLast, propertiesImport.outputAddress, propertiesImport.returnAddress);
+		System.out.println("wallet-core started in " + (System.currentTimeMillis() - walletStart) + " ms");
+		if (IotaConfig.addressCache != null)
+			System.out.println("address-cache: " + IotaConfig.addressCache.getHits() + " hits, " + IotaConfig.addressCache.getMisses() + " misses (" + IotaConfig.addressCache.getCorrupted() + " corrupted)");
 		
 
+		if (IotaConfig.confirmationFeed != null) {
+			System.out.println("starting ConfirmationFeed");
+			IotaConfig.confirmationFeed.start(wallet.transactionManager.confirmByInclusion);
+		}
+
 		// define RosAdapter connecting the machine
 		System.out.println("starting RosAdapter");
 		RosAdapter ros = new RosAdapter(propertiesImport.rosHost);
@@ -4,6 +4,7 @@ import java.time.LocalDateTime;
 
 import de.topocare.topocareXiota.iotaMachineWallet.IotaMachineWalletCore;
 import de.topocare.topocareXiota.iotaMachineWallet.WalletState;
+import de.topocare.topocareXiota.iotaMachineWallet.address.IotaAddress;
 import de.topocare.topocareXiota.ros.RosAdapter;
 
 /**
@@ -33,6 +34,28 @@ public class Mediator {
 	 */
 	String keyword = "topo";
 
+	/**
+	 * The address shown to customers to fund the machine, announced by the
+	 * receivingPool. Replaced once it was funded or swept.
+	 */
+	private IotaAddress receivingAddress;
+
+	/**
+	 * Returns the address to fund the machine, announcing a new one if the
+	 * current one was funded or swept. The shown address is kept hot, so a
+	 * payment to it is noticed on the next update.
+	 * 
+	 * @return the address, or null if the receivingPool has no checked fresh
+	 *         address yet
+	 */
+	public synchronized IotaAddress getReceivingAddress() {
+		if (receivingAddress == null || !iotaMachineWallet.receivingPool.isUnused(receivingAddress))
+			receivingAddress = iotaMachineWallet.receivingPool.announceAddress();
+		else
+			iotaMachineWallet.receivingPool.markHot(receivingAddress.getKeyIndex());
+		return receivingAddress;
+	}
+
 	/**
 	 * To be bound as callback/consumer of the RosAdapter, defines reactions to the
 	 * machine-buttons
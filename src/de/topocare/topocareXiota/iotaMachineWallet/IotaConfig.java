@@ -1,5 +1,10 @@
 package de.topocare.topocareXiota.iotaMachineWallet;
 
+import de.topocare.topocareXiota.iotaMachineWallet.address.IotaAddressCache;
+import de.topocare.topocareXiota.iotaMachineWallet.persistence.PoolJournal;
+import de.topocare.topocareXiota.iotaMachineWallet.persistence.PoolSnapshot;
+import de.topocare.topocareXiota.iotaMachineWallet.pools.CoinSelection;
+import de.topocare.topocareXiota.iotaMachineWallet.tangleMonitoring.ConfirmationFeed;
 import jota.IotaAPI;
 import jota.pow.pearldiver.PearlDiverLocalPoW;
 
@@ -36,10 +41,45 @@ public class IotaConfig {
 	public static int security;
 
 	/**
-	 * The jota.IotaAPI to be used by the wallet.
+	 * The jota.IotaAPI of the first node, used for local work (address generation).
 	 */
 	public static IotaAPI api;
 
+	/**
+	 * Asynchronous access to the nodes. Used for all node interactions.
+	 */
+	public static TangleGateway gateway;
+
+	/**
+	 * Maximum number of concurrent requests of the TangleGateway to the nodes.
+	 */
+	public static int nodeConcurrency = 4;
+
+	/**
+	 * Time until a read request is repeated on a second node, 0 disables hedging.
+	 */
+	public static int nodeHedgeMillis = 500;
+
+	/**
+	 * Window in which balance and spent requests are merged into one request, 0 merges concurrent requests only.
+	 */
+	public static int nodeCoalesceMillis = 50;
+
+	/**
+	 * Interval of the health probes of the nodes.
+	 */
+	public static int nodeProbeSeconds = 30;
+
+	/**
+	 * Failed requests in a row until a node is ejected.
+	 */
+	public static int nodeMaxFailures = 3;
+
+	/**
+	 * Milestones a node may lag behind the latest known milestone until it is ejected as syncing.
+	 */
+	public static int nodeMaxMilestoneLag = 2;
+
 	/**
 	 * IOTA token per production unit.
 	 */
@@ -55,9 +95,138 @@ public class IotaConfig {
 	 */
 	public static int productionPoolUpperBorder;
 
+	/**
+	 * Time constant of the unit consumption rate used to plan the refill of the production-pool, in seconds.
+	 */
+	public static int refillRateWindowSeconds = 300;
+
+	/**
+	 * Factor applied to the observed time until spread units are available.
+	 */
+	public static double refillSafetyFactor = 1.5;
+
 	/**
 	 * transaction-bundles on the tangle will be promoted (reattached if nessessery)
-	 * after X minutes.
+	 * after at most X minutes.
 	 */
 	public static int promoteOrReattachAfterMinutes;
+
+	/**
+	 * Shortest interval until a transaction-bundle is promoted, also used as first
+	 * interval until enough confirmation times are known.
+	 */
+	public static int promotionMinSeconds = 30;
+
+	/**
+	 * Factor between two following promotion intervals of a transaction-bundle.
+	 */
+	public static double promotionBackoffFactor = 2.0;
+
+	/**
+	 * Percentile of the observed confirmation times used as first promotion
+	 * interval.
+	 */
+	public static int promotionPercentile = 50;
+
+	/**
+	 * Maximum number of production units collected into one payment bundle. 1
+	 * disables batching, every unit is paid with its own bundle.
+	 */
+	public static int paymentBatchMaxUnits;
+
+	/**
+	 * Pending unit payments are send at the latest X seconds after the first unit
+	 * of the batch was requested.
+	 */
+	public static int paymentBatchWindowSeconds;
+
+	/**
+	 * Number of concurrent attachments (proof of work), 0 uses the number of
+	 * available processors.
+	 */
+	public static int powWorkers;
+
+	/**
+	 * Persistent cache of derived addresses for seed and security, null if
+	 * disabled.
+	 */
+	public static IotaAddressCache addressCache;
+
+	/**
+	 * Write-ahead journal of the pools, null if disabled.
+	 */
+	public static PoolJournal journal;
+
+	/**
+	 * Background snapshots of the journaled state, null if disabled.
+	 */
+	public static PoolSnapshot snapshot;
+
+	/**
+	 * Interval between two snapshots.
+	 */
+	public static int snapshotIntervalSeconds = 60;
+
+	/**
+	 * Addresses per node request when scanning the seed at startup.
+	 */
+	public static int scanChunkSize;
+
+	/**
+	 * Chunks of the startup scan processed at the same time.
+	 */
+	public static int scanChunksInFlight;
+
+	/**
+	 * If > 0 the startup search ends after this many consecutive unused
+	 * addresses instead of at a fixed keyIndex.
+	 */
+	public static int searchGapLimit;
+
+	/**
+	 * Number of verified free addresses kept ready by the IotaFreeAddressFactory,
+	 * 0 disables the reservoir.
+	 */
+	public static int freeAddressReservoirSize;
+
+	/**
+	 * Confirm bundles by the inclusion state of their tail transactions (ConfirmByInclusion) instead of the
+	 * balance of a reference address (ConfirmOnTangle).
+	 */
+	public static boolean confirmationByInclusion = true;
+
+	/**
+	 * Streaming source of confirmed transactions, null if only polling is used. Requires confirmationByInclusion.
+	 */
+	public static ConfirmationFeed confirmationFeed;
+
+	/**
+	 * Time a receiving address is polled on every update after it was funded, returned or marked hot.
+	 */
+	public static int receivingHotSeconds = 600;
+
+	/**
+	 * Updates until each idle receiving address is polled once, 1 polls all addresses on every update.
+	 */
+	public static int receivingIdlePollTicks = 6;
+
+	/**
+	 * Maximum number of receiving addresses in the sliding window, 0 = fixed range without a window.
+	 */
+	public static int receivingWindowSize = 0;
+
+	/**
+	 * Fresh receiving addresses the sliding window keeps ready to be announced.
+	 */
+	public static int receivingWindowAhead = 10;
+
+	/**
+	 * Maximum number of input addresses in one bundle, larger refunds are split into several bundles. 0 = no limit.
+	 */
+	public static int maxBundleInputs = 10;
+
+	/**
+	 * Strategy choosing the input addresses when taking a balance from a pool.
+	 */
+	public static CoinSelection coinSelection = CoinSelection.minimumInputs;
 }
@@ -2,22 +2,33 @@ package de.topocare.topocareXiota.iotaMachineWallet;
 
 import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.*;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.IntPredicate;
 
+import de.topocare.topocareXiota.iotaMachineWallet.address.AddressRangeScanner;
 import de.topocare.topocareXiota.iotaMachineWallet.address.IotaAddress;
 import de.topocare.topocareXiota.iotaMachineWallet.address.IotaFreeAddressFactory;
+import de.topocare.topocareXiota.iotaMachineWallet.persistence.JournalReplay;
+import de.topocare.topocareXiota.iotaMachineWallet.persistence.PoolJournal;
+import de.topocare.topocareXiota.iotaMachineWallet.persistence.PoolSnapshot;
+import de.topocare.topocareXiota.iotaMachineWallet.poolTransactions.PoolTransaction;
+import de.topocare.topocareXiota.iotaMachineWallet.poolTransactions.PoolTransactionBase;
+import de.topocare.topocareXiota.iotaMachineWallet.poolTransactions.PoolTransactionInput;
+import de.topocare.topocareXiota.iotaMachineWallet.poolTransactions.PoolTransactionTransfer;
 import de.topocare.topocareXiota.iotaMachineWallet.pools.IotaAddressPool;
+import de.topocare.topocareXiota.iotaMachineWallet.pools.ProductionUnitPool;
 import de.topocare.topocareXiota.iotaMachineWallet.pools.ReceivingAddressPool;
 import de.topocare.topocareXiota.iotaMachineWallet.pools.UnmanagedTransactionTarget;
 import de.topocare.topocareXiota.iotaMachineWallet.tangleMonitoring.ConfirmOnTangle;
+import de.topocare.topocareXiota.iotaMachineWallet.tangleTransactions.RecoveredTangleTransaction;
 import de.topocare.topocareXiota.iotaMachineWallet.tangleTransactions.TangleTransaction;
 import de.topocare.topocareXiota.iotaMachineWallet.tangleTransactions.TransactionFactory;
 import de.topocare.topocareXiota.iotaMachineWallet.tangleTransactions.TransactionManager;
-import jota.dto.response.GetBalancesResponse;
-import jota.error.ArgumentException;
 
 /**
  * Core-class of the machine-wallet. To be supplemented by a frontend combining
@@ -32,7 +43,7 @@ public class IotaMachineWalletCore {
 	// Pools and payment targets
 	public ReceivingAddressPool receivingPool;
 	public IotaAddressPool useablePool;
-	public IotaAddressPool productionPool;
+	public ProductionUnitPool productionPool;
 
 	public UnmanagedTransactionTarget paymentTarget;
 	public UnmanagedTransactionTarget refundingTarget;
@@ -65,13 +76,21 @@ public class IotaMachineWalletCore {
 	public IotaMachineWalletCore(int inputAddress_first, int inputAddress_last, int initialKeyIndex,
 			String outputAddress, String returnAddress) {
 
+		// empty pools, a previous journal is not used
+		if (snapshot != null)
+			snapshot.reset();
+		else if (journal != null)
+			journal.clear(journal.getEpoch() + 1);
+
 		freeAddressGenerator = new IotaFreeAddressFactory(initialKeyIndex);
 
 		useablePool = new IotaAddressPool(freeAddressGenerator);
-		productionPool = new IotaAddressPool(freeAddressGenerator);
+		productionPool = new ProductionUnitPool(freeAddressGenerator);
 
 		constructorCommons(freeAddressGenerator, inputAddress_first, inputAddress_last, outputAddress, returnAddress);
 
+		if (snapshot != null)
+			snapshot.start(snapshotIntervalSeconds);
 	}
 
 	/**
@@ -81,10 +100,18 @@ public class IotaMachineWalletCore {
 	 * Creates a wallet using the IotaConfig, using all the options there. <br>
 	 * All addresses between searchKeyIndexFirst and searchKeyIndexLast (both
 	 * including) will be checked for balance and added to the Pools (production
-	 * pool if containing exactly one production unit, usable pool otherwise). Any
+	 * pool if containing exactly one production unit, usable pool otherwise). If
+	 * searchGapLimit (IotaConfig) is set, searchKeyIndexLast is ignored and the
+	 * search continues until searchGapLimit unused addresses follow the last used
+	 * one. Any
 	 * previously initiated transactions on the tangle regarding these addresses,
-	 * that confirm after program start, will result in errors. To be replaced by
-	 * persistence layer.
+	 * that confirm after program start, will result in errors.
+	 * <p>
+	 * If a PoolJournal (IotaConfig) with records exists, no search is done.
+	 * The pools, ongoing PoolTransactions and attached bundles waiting for
+	 * confirmation are restored from the journal instead, starting from the
+	 * latest PoolSnapshot if configured. Only the addresses touched since the
+	 * snapshot are verified on the tangle.
 	 * 
 	 * @param inputAddress_first  keyIndex of the first address in the receiving
 	 *                            pool
@@ -105,56 +132,48 @@ public class IotaMachineWalletCore {
 	public IotaMachineWalletCore(int inputAddress_first, int inputAddress_last, int searchKeyIndexFirst,
 			int searchKeyIndexLast, String outputAddress, String returnAddress) {
 
-		List<IotaAddress> addressesToCheck = IotaAddress.newListOfUncheckedAddresses(searchKeyIndexFirst,
-				searchKeyIndexLast);
+		if (journal != null) {
+			JournalReplay replay;
+			try {
+				if (snapshot != null)
+					replay = snapshot.restore();
+				else {
+					replay = journal.replay();
+					// the replayed state replaces the history, as restore() of a snapshot does
+					if (!replay.isEmpty())
+						journal.compact(replay, journal.getEpoch() + 1);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException("PoolJournal can't be restored", e);
+			}
+			if (!replay.isEmpty()) {
+				restoreFromJournal(replay, inputAddress_first, inputAddress_last, searchKeyIndexFirst, outputAddress,
+						returnAddress);
+				if (snapshot != null)
+					snapshot.start(snapshotIntervalSeconds);
+				return;
+			}
+		}
 
-		// remove input-addresses from search
-		addressesToCheck.removeIf(e -> e.getKeyIndex() >= inputAddress_first && e.getKeyIndex() <= inputAddress_last);
+		AddressRangeScanner scanner = new AddressRangeScanner(scanChunkSize, scanChunksInFlight);
+		// input-addresses are not part of the search
+		IntPredicate isInputAddress = keyIndex -> keyIndex >= inputAddress_first && keyIndex <= inputAddress_last;
+		AddressRangeScanner.ScanResult scan;
+		if (searchGapLimit > 0)
+			scan = scanner.scanWithGapLimit(searchKeyIndexFirst, searchGapLimit, isInputAddress);
+		else
+			scan = scanner.scan(searchKeyIndexFirst, searchKeyIndexLast, isInputAddress);
 
 		List<IotaAddress> addressesForProductionPool = new ArrayList<IotaAddress>();
 		List<IotaAddress> addressesForUseablePool = new ArrayList<IotaAddress>();
-		int highestKeyIndexWithBalance = 0;
-		int highestKeyIndexSendFrom = 0;
-
-		// split large api call in smaller requests, 500 elements each
-		int requests = addressesToCheck.size() / 500;
-		if (addressesToCheck.size() % 500 != 0)
-			requests++;
-		int maxEndValue = addressesToCheck.size() - 1;
-
-		for (int i = 0; i < requests; i++) {
-			int start = i * 500;
-			int end = (i + 1) * 500 - 1;
-			if (end > maxEndValue)
-				end = maxEndValue;
-			List<IotaAddress> subList = addressesToCheck.subList(start, end);
-
-			try {
-				GetBalancesResponse resBalance = api.getBalances(100, IotaAddress.asStringList_getAddress(subList));
-				String[] balances = resBalance.getBalances();
-				boolean[] resSpendFrom = api.checkWereAddressSpentFrom(IotaAddress.asStringArray_getAddress(subList));
-
-				for (int b = 0; b < balances.length; b++) {
-					long balance = Long.parseLong(balances[b]);
-					if (balance != 0) {
-						subList.get(b).setBalance(balance);
-						if (balance == productionUnitSize) {
-							addressesForProductionPool.add(subList.get(b));
-						} else {
-							addressesForUseablePool.add(subList.get(b));
-						}
-						highestKeyIndexWithBalance = subList.get(b).getKeyIndex();
-
-					}
-					if (resSpendFrom[b]) {
-						highestKeyIndexSendFrom = subList.get(b).getKeyIndex();
-					}
-				}
-			} catch (ArgumentException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+		for (IotaAddress address : scan.addressesWithBalance) {
+			if (address.getBalance() == productionUnitSize)
+				addressesForProductionPool.add(address);
+			else
+				addressesForUseablePool.add(address);
 		}
+		int highestKeyIndexWithBalance = scan.highestKeyIndexWithBalance;
+		int highestKeyIndexSendFrom = scan.highestKeyIndexSpentFrom;
 
 		// find starting point for new addresses
 		int initialKeyIndex;
@@ -169,9 +188,143 @@ public class IotaMachineWalletCore {
 		freeAddressGenerator = new IotaFreeAddressFactory(initialKeyIndex);
 
 		useablePool = new IotaAddressPool(freeAddressGenerator, addressesForUseablePool);
-		productionPool = new IotaAddressPool(freeAddressGenerator, addressesForProductionPool);
+		productionPool = new ProductionUnitPool(freeAddressGenerator, addressesForProductionPool);
 
 		constructorCommons(freeAddressGenerator, inputAddress_first, inputAddress_last, outputAddress, returnAddress);
+
+		if (journal != null) {
+			journal.recordContent(useablePool, addressesForUseablePool);
+			journal.recordContent(productionPool, addressesForProductionPool);
+		}
+		if (snapshot != null)
+			snapshot.start(snapshotIntervalSeconds);
+	}
+
+	// helper-method restoring pools, PoolTransactions and bundles from the journal
+	private void restoreFromJournal(JournalReplay replay, int inputAddress_first, int inputAddress_last,
+			int searchKeyIndexFirst, String outputAddress, String returnAddress) {
+		System.out.println("Restoring wallet from journal (" + replay.records + " records)...");
+
+		Map<Integer, IotaAddress> restoredAddresses = new HashMap<Integer, IotaAddress>();
+		verifyTouchedAddresses(replay, restoredAddresses);
+		freeAddressGenerator = new IotaFreeAddressFactory(Math.max(replay.maxKeyIndex + 1, searchKeyIndexFirst));
+		useablePool = new IotaAddressPool(freeAddressGenerator,
+				restoreAddresses(replay.contentOf(PoolJournal.USEABLE_POOL), restoredAddresses));
+		productionPool = new ProductionUnitPool(freeAddressGenerator,
+				restoreAddresses(replay.contentOf(PoolJournal.PRODUCTION_POOL), restoredAddresses));
+
+		constructorCommons(freeAddressGenerator, inputAddress_first, inputAddress_last, outputAddress, returnAddress);
+		receivingPool.addRecovered(
+				restoreAddresses(replay.contentOf(PoolJournal.RECEIVING_POOL), restoredAddresses));
+
+		// PoolTransactions neither committed nor rolled back
+		Map<Long, PoolTransactionBase> pending = new LinkedHashMap<Long, PoolTransactionBase>();
+		for (JournalReplay.PendingTransaction p : replay.pendingTransactions.values()) {
+			List<IotaAddress> addresses = restoreAddresses(p.addresses, restoredAddresses);
+			if (p.poolId == PoolJournal.PAYMENT_TARGET || p.poolId == PoolJournal.REFUNDING_TARGET) {
+				UnmanagedTransactionTarget target = p.poolId == PoolJournal.PAYMENT_TARGET ? paymentTarget
+						: refundingTarget;
+				pending.put(p.id, target.giveRecovered(p.id, p.balance));
+			} else if (p.poolId == PoolJournal.RECEIVING_POOL) {
+				PoolTransaction pt = new PoolTransaction(p.id, addresses, p.balance, receivingPool, null, false);
+				receivingPool.takeRecovered(pt);
+				pending.put(p.id, pt);
+			} else {
+				IotaAddressPool pool = p.poolId == PoolJournal.USEABLE_POOL ? useablePool : productionPool;
+				PoolTransaction pt;
+				if (p.give) {
+					pt = new PoolTransaction(p.id, addresses, p.balance, null, pool, true);
+					pool.giveRecovered(pt);
+				} else {
+					pt = new PoolTransaction(p.id, addresses, p.balance, pool, null, true);
+					pool.takeRecovered(pt);
+				}
+				pending.put(p.id, pt);
+			}
+		}
+
+		// signed bundles wait for confirmation again, their PoolTransactions are never rolled back
+		for (JournalReplay.PendingBundle bundle : replay.pendingBundles.values()) {
+			List<PoolTransactionInput> inputs = new ArrayList<PoolTransactionInput>();
+			List<PoolTransactionTransfer> outputs = new ArrayList<PoolTransactionTransfer>();
+			for (long id : bundle.transactionIds) {
+				PoolTransactionBase pt = pending.remove(id);
+				if (pt == null)
+					continue;
+				if (replay.pendingTransactions.get(id).give)
+					outputs.add((PoolTransactionTransfer) pt);
+				else
+					inputs.add((PoolTransactionInput) pt);
+			}
+			if (bundle.refKeyIndex < 0 && bundle.hashes.isEmpty() && bundle.trytes == null) {
+				System.err.println("Journaled bundle " + bundle.id
+						+ " has no tail, trytes or address for confirmation, its addresses stay out of the pools.");
+				continue;
+			}
+			IotaAddress ref = bundle.refKeyIndex < 0 ? null
+					: restoredAddresses.computeIfAbsent(bundle.refKeyIndex, k -> new IotaAddress(k, bundle.refValue));
+			transactionManager.resumeConfirmation(
+					new RecoveredTangleTransaction(transactionManager, bundle.id, inputs, outputs, ref, bundle.refValue,
+							bundle.trytes),
+					bundle.hashes);
+		}
+
+		// PoolTransactions of bundles never signed
+		pending.values().forEach(pt -> pt.rollback());
+
+		System.out.println("Restored: " + useablePool.getAddressCount() + " useable, "
+				+ productionPool.getAddressCount() + " production addresses, "
+				+ transactionManager.transactionsAtConfirmation.size() + " bundles waiting for confirmation");
+		stateUpdate();
+	}
+
+	// helper-method comparing the journaled balances of pool addresses touched since the last snapshot with the tangle
+	private void verifyTouchedAddresses(JournalReplay replay, Map<Integer, IotaAddress> restoredAddresses) {
+		Map<Integer, Long> touched = new LinkedHashMap<Integer, Long>();
+		for (byte poolId : new byte[] { PoolJournal.USEABLE_POOL, PoolJournal.PRODUCTION_POOL })
+			replay.contentOf(poolId).forEach((keyIndex, balance) -> {
+				if (replay.touched.contains(keyIndex))
+					touched.put(keyIndex, balance);
+			});
+		if (touched.isEmpty())
+			return;
+
+		List<IotaAddress> addresses = restoreAddresses(touched, restoredAddresses);
+		long[] balances;
+		try {
+			balances = gateway.getBalances(IotaAddress.asStringList_getAddress(addresses)).join();
+		} catch (Exception e) {
+			System.err.println("Verification of journaled addresses failed, using journaled balances");
+			e.printStackTrace();
+			return;
+		}
+
+		int corrected = 0;
+		for (int i = 0; i < addresses.size(); i++) {
+			IotaAddress address = addresses.get(i);
+			long balance = balances[i];
+			if (balance == address.getBalance())
+				continue;
+			corrected++;
+			address.setBalance(balance);
+			replay.contentOf(PoolJournal.USEABLE_POOL).remove(address.getKeyIndex());
+			replay.contentOf(PoolJournal.PRODUCTION_POOL).remove(address.getKeyIndex());
+			if (balance == productionUnitSize)
+				replay.contentOf(PoolJournal.PRODUCTION_POOL).put(address.getKeyIndex(), balance);
+			else if (balance > 0)
+				replay.contentOf(PoolJournal.USEABLE_POOL).put(address.getKeyIndex(), balance);
+		}
+		System.out.println("Verified " + addresses.size() + " addresses touched since the snapshot, corrected "
+				+ corrected);
+	}
+
+	// helper-method creating IotaAddresses from journaled keyIndex/balance pairs, sharing objects by keyIndex
+	private static List<IotaAddress> restoreAddresses(Map<Integer, Long> journaled,
+			Map<Integer, IotaAddress> restoredAddresses) {
+		List<IotaAddress> addresses = new ArrayList<IotaAddress>();
+		journaled.forEach((keyIndex, balance) -> addresses
+				.add(restoredAddresses.computeIfAbsent(keyIndex, k -> new IotaAddress(k, balance))));
+		return addresses;
 	}
 
 	// helper-method for common constructor parts
@@ -188,7 +341,15 @@ public class IotaMachineWalletCore {
 			returnAddress = freeAddressGenerator.getNextFreeAddress().getAddressWithChecksum();
 		this.refundingTarget = new UnmanagedTransactionTarget(returnAddress);
 
-		receivingPool = new ReceivingAddressPool(inputAddress_first, inputAddress_last);
+		receivingPool = new ReceivingAddressPool(inputAddress_first, inputAddress_last, freeAddressFactory);
+
+		if (journal != null) {
+			journal.registerPool(receivingPool, PoolJournal.RECEIVING_POOL);
+			journal.registerPool(useablePool, PoolJournal.USEABLE_POOL);
+			journal.registerPool(productionPool, PoolJournal.PRODUCTION_POOL);
+			journal.registerPool(paymentTarget, PoolJournal.PAYMENT_TARGET);
+			journal.registerPool(refundingTarget, PoolJournal.REFUNDING_TARGET);
+		}
 		stateUpdate();
 	}
 
@@ -198,9 +359,12 @@ public class IotaMachineWalletCore {
 	/**
 	 * Tiggers a stateUpdate() if old or new value is 0, used to check if
 	 * transaction counters in transactionManager change the machine state.
+	 * While a refund waits for the other transactions (refundingLock), every
+	 * change triggers it, so the refund starts as soon as they are done.
 	 */
 	public void stateUpdate(int oldValue, int newValue) {
-		if (oldValue == 0 || newValue == 0)
+		if (oldValue == 0 || newValue == 0
+				|| (transactionManager.isRefundingLock() && !transactionManager.isRefundingNow()))
 			stateUpdate();
 	}
 
@@ -215,8 +379,7 @@ public class IotaMachineWalletCore {
 	 */
 	public synchronized void stateUpdate() {
 		boolean transaction = false;
-		int transactionCount = transactionManager.transactionCounterAtServer.get()
-				+ transactionManager.transactionCounterPreServer.get()
+		int transactionCount = transactionManager.powScheduler.getInFlight()
 				+ transactionManager.transactionsAtConfirmation.size();
 		if (transactionCount > 0)
 			transaction = true;
@@ -2,9 +2,20 @@ package de.topocare.topocareXiota.iotaMachineWallet;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
+import de.topocare.topocareXiota.iotaMachineWallet.address.IotaAddressCache;
+import de.topocare.topocareXiota.iotaMachineWallet.persistence.PoolJournal;
+import de.topocare.topocareXiota.iotaMachineWallet.persistence.PoolSnapshot;
+import de.topocare.topocareXiota.iotaMachineWallet.pools.CoinSelection;
+import de.topocare.topocareXiota.iotaMachineWallet.pow.ParallelLocalPoW;
+import de.topocare.topocareXiota.iotaMachineWallet.tangleMonitoring.SimulatedConfirmationFeed;
+import de.topocare.topocareXiota.iotaMachineWallet.tangleMonitoring.ZmqConfirmationFeed;
 import jota.IotaAPI;
+import jota.IotaLocalPoW;
 import jota.pow.pearldiver.PearlDiverLocalPoW;
 
 /**
@@ -34,17 +45,83 @@ public class PropertiesImport {
 			IotaConfig.minWeightMagnitude = Integer.parseInt(props.getProperty("minWeightMagnitude"));
 			IotaConfig.security = Integer.parseInt(props.getProperty("security"));
 			
+			String addressCacheDirectory = props.getProperty("addressCacheDirectory", "");
+			if (!addressCacheDirectory.isEmpty())
+				IotaConfig.addressCache = new IotaAddressCache(addressCacheDirectory, IotaConfig.seed,
+						IotaConfig.security);
+			
+			String journalFile = props.getProperty("journalFile", "");
+			if (!journalFile.isEmpty())
+				IotaConfig.journal = new PoolJournal(journalFile,
+						Integer.parseInt(props.getProperty("journalSyncMillis", "50")));
+			
+			String snapshotFile = props.getProperty("snapshotFile", "");
+			if (IotaConfig.journal != null && !snapshotFile.isEmpty())
+				IotaConfig.snapshot = new PoolSnapshot(snapshotFile, IotaConfig.journal);
+			IotaConfig.snapshotIntervalSeconds = Integer.parseInt(props.getProperty("snapshotIntervalSeconds", "60"));
+			
+			
+			IotaConfig.powWorkers = Integer.parseInt(props.getProperty("powWorkers", "0"));
 			
 			String host = props.getProperty("host");
 			String port = props.getProperty("port");
 			
-			IotaConfig.api = new IotaAPI.Builder().protocol("https").host(host).port(port)
-					.localPoW(new PearlDiverLocalPoW()).build();
+			IotaLocalPoW localPoW;
+			if (props.getProperty("localPoW", "pearldiver").equals("parallel"))
+				localPoW = new ParallelLocalPoW(Integer.parseInt(props.getProperty("localPoWThreads", "0")));
+			else
+				localPoW = new PearlDiverLocalPoW();
+			
+			// node list, host/port if not set
+			List<TangleNode> nodes = new ArrayList<TangleNode>();
+			String nodeList = props.getProperty("nodes", "");
+			if (nodeList.trim().isEmpty())
+				nodeList = "https://" + host + ":" + port;
+			for (String node : nodeList.split(",")) {
+				URI uri = URI.create(node.trim());
+				int nodePort = uri.getPort() != -1 ? uri.getPort() : uri.getScheme().equals("https") ? 443 : 80;
+				nodes.add(new TangleNode(node.trim(), new IotaAPI.Builder().protocol(uri.getScheme())
+						.host(uri.getHost()).port(String.valueOf(nodePort)).localPoW(localPoW).build()));
+			}
+			
+			IotaConfig.api = nodes.get(0).getApi();
+			IotaConfig.nodeConcurrency = Integer.parseInt(props.getProperty("nodeConcurrency", "4"));
+			IotaConfig.nodeHedgeMillis = Integer.parseInt(props.getProperty("nodeHedgeMillis", "500"));
+			IotaConfig.nodeCoalesceMillis = Integer.parseInt(props.getProperty("nodeCoalesceMillis", "50"));
+			IotaConfig.nodeProbeSeconds = Integer.parseInt(props.getProperty("nodeProbeSeconds", "30"));
+			IotaConfig.nodeMaxFailures = Integer.parseInt(props.getProperty("nodeMaxFailures", "3"));
+			IotaConfig.nodeMaxMilestoneLag = Integer.parseInt(props.getProperty("nodeMaxMilestoneLag", "2"));
+			IotaConfig.gateway = new TangleGateway(nodes, IotaConfig.nodeConcurrency);
 			
 			IotaConfig.productionUnitSize = Integer.parseInt(props.getProperty("productionUnitSize"));
 			IotaConfig.productionPoolLowerBorder = Integer.parseInt(props.getProperty("productionPoolLowerBorder"));
 			IotaConfig.productionPoolUpperBorder = Integer.parseInt(props.getProperty("productionPoolUpperBorder"));
+			IotaConfig.refillRateWindowSeconds = Integer.parseInt(props.getProperty("refillRateWindowSeconds", "300"));
+			IotaConfig.refillSafetyFactor = Double.parseDouble(props.getProperty("refillSafetyFactor", "1.5"));
 			IotaConfig.promoteOrReattachAfterMinutes = Integer.parseInt(props.getProperty("promoteOrReattachAfterMinutes"));
+			IotaConfig.promotionMinSeconds = Integer.parseInt(props.getProperty("promotionMinSeconds", "30"));
+			IotaConfig.promotionBackoffFactor = Double.parseDouble(props.getProperty("promotionBackoffFactor", "2.0"));
+			IotaConfig.promotionPercentile = Integer.parseInt(props.getProperty("promotionPercentile", "50"));
+			IotaConfig.receivingHotSeconds = Integer.parseInt(props.getProperty("receivingHotSeconds", "600"));
+			IotaConfig.receivingIdlePollTicks = Integer.parseInt(props.getProperty("receivingIdlePollTicks", "6"));
+			IotaConfig.receivingWindowSize = Integer.parseInt(props.getProperty("receivingWindowSize", "0"));
+			IotaConfig.receivingWindowAhead = Integer.parseInt(props.getProperty("receivingWindowAhead", "10"));
+			IotaConfig.maxBundleInputs = Integer.parseInt(props.getProperty("maxBundleInputs", "10"));
+			IotaConfig.coinSelection = CoinSelection.valueOf(props.getProperty("coinSelection", "minimumInputs"));
+			IotaConfig.confirmationByInclusion = Boolean.parseBoolean(props.getProperty("confirmationByInclusion", "true"));
+			String confirmationFeed = props.getProperty("confirmationFeed", "");
+			if (confirmationFeed.equals("simulated")) {
+				// confirms every bundle, never on a real network
+				if (!Boolean.parseBoolean(props.getProperty("offlineTesting", "false")))
+					throw new RuntimeException(
+							"confirmationFeed = simulated confirms every bundle, only allowed with offlineTesting = true");
+				IotaConfig.confirmationFeed = new SimulatedConfirmationFeed(
+						Integer.parseInt(props.getProperty("confirmationFeedSimulatedDelaySeconds", "30")));
+			} else if (!confirmationFeed.isEmpty())
+				IotaConfig.confirmationFeed = new ZmqConfirmationFeed(confirmationFeed);
+			IotaConfig.freeAddressReservoirSize = Integer.parseInt(props.getProperty("freeAddressReservoirSize", "0"));
+			IotaConfig.paymentBatchMaxUnits = Integer.parseInt(props.getProperty("paymentBatchMaxUnits", "1"));
+			IotaConfig.paymentBatchWindowSeconds = Integer.parseInt(props.getProperty("paymentBatchWindowSeconds", "10"));
 			
 			//for wallet constructor
 			outputAddress = props.getProperty("outputAddress");
@@ -53,6 +130,9 @@ public class PropertiesImport {
 			receivingAddress_last =Integer.parseInt(props.getProperty("receivingAddress_last"));
 			searchKeyIndexFirst =Integer.parseInt(props.getProperty("searchKeyIndexFirst"));
 			searchKeyIndexLast = Integer.parseInt(props.getProperty("searchKeyIndexLast"));
+			IotaConfig.searchGapLimit = Integer.parseInt(props.getProperty("searchGapLimit", "0"));
+			IotaConfig.scanChunkSize = Integer.parseInt(props.getProperty("scanChunkSize", "500"));
+			IotaConfig.scanChunksInFlight = Integer.parseInt(props.getProperty("scanChunksInFlight", "4"));
 			
 		} catch (IOException e) {
 			throw new RuntimeException("wallet.properties not found");
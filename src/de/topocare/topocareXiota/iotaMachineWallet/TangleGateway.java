@@ -0,0 +1,507 @@
+package de.topocare.topocareXiota.iotaMachineWallet;
+
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import jota.IotaAPI;
+import jota.dto.response.GetNodeInfoResponse;
+import jota.dto.response.GetTransactionsToApproveResponse;
+import jota.model.Bundle;
+import jota.model.Input;
+import jota.model.Transaction;
+import jota.model.Transfer;
+
+/**
+ * Asynchronous access to the IOTA nodes, used for all node interactions of the
+ * wallet instead of calling the IotaAPI directly.
+ * <p>
+ * Requests to the nodes are run by a bounded pool of concurrency threads, the
+ * results are returned as CompletableFuture. Callers (pools, ConfirmOnTangle,
+ * ConfirmByInclusion, TangleTransaction) don't block their own threads or hold
+ * their monitors while a request is pending, and the number of concurrent
+ * requests stays bounded. All requests to a node share the HTTP client of its
+ * IotaAPI, which keeps its connections alive between requests; with the bounded
+ * concurrency the requests are served by these pooled connections.
+ * <p>
+ * With several nodes (TangleNode), the healthy ones are ranked by their
+ * measured latency and error rate:
+ * <ul>
+ * <li>reads (balances, spent states, inclusion states) go to the best node
+ * and are hedged: if there is no answer after nodeHedgeMillis (at least twice
+ * the node's average latency), the same request is sent to the next node, the
+ * first answer is used</li>
+ * <li>requests of one attachment or promotion (tips, consistency, broadcast,
+ * promotion) are pinned to the best node (see pin()), so the node broadcasting
+ * the bundle knows its tips; a failed pinned request is not repeated on
+ * another node, the caller repeats the attachment with a new pin</li>
+ * <li>a failed read is repeated on the next node</li>
+ * </ul>
+ * Nodes failing nodeMaxFailures times in a row are ejected. Every
+ * nodeProbeSeconds all nodes are probed with getNodeInfo; nodes whose solid
+ * milestone lags more than nodeMaxMilestoneLag behind the latest known
+ * milestone are ejected as syncing, answering nodes without lag are readmitted.
+ * If no node is healthy, all are tried.
+ * <p>
+ * Balance and spent requests are coalesced: requests arriving within
+ * nodeCoalesceMillis (e.g. receiving pool and ConfirmOnTangle in the same
+ * IotaLoopTask run, IotaFreeAddressFactory) are merged, addresses requested
+ * more than once are asked for once, and the merged addresses are requested in
+ * chunks of at most COALESCE_CHUNK.
+ * <p>
+ * Local work (signing in prepareTransfers, PoW in attachToTangle, all IotaAPIs
+ * have an IotaLocalPoW) is run on the calling thread, a PowScheduler worker,
+ * and does not occupy a request slot. It uses the IotaAPI of the best node.
+ * Its failures are failures of the computation, they are passed to the caller
+ * and never counted against the health of a node; only the node requests
+ * (reads, pinned requests, probes) are.
+ * <p>
+ * Exceptions of the IotaAPI complete the futures exceptionally, join() throws
+ * them wrapped in a CompletionException.
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public class TangleGateway {
+
+	/**
+	 * Maximum addresses of one coalesced request.
+	 */
+	public static final int COALESCE_CHUNK = 500;
+
+	private List<TangleNode> nodes;
+	private ThreadPoolExecutor requests;
+	private ScheduledExecutorService hedgeTimer;
+	private ScheduledExecutorService probeTask;
+
+	private AtomicLong requestCount = new AtomicLong();
+	private AtomicLong failedCount = new AtomicLong();
+	private AtomicLong hedgedCount = new AtomicLong();
+
+	private Coalescer<Long> balances = new Coalescer<Long>(chunk -> read(api -> {
+		String[] balances = api.getBalances(100, chunk).getBalances();
+		List<Long> result = new ArrayList<Long>(balances.length);
+		for (String balance : balances)
+			result.add(Long.parseLong(balance));
+		return result;
+	}));
+
+	private Coalescer<Boolean> spentStates = new Coalescer<Boolean>(chunk -> read(api -> {
+		boolean[] spent = api.checkWereAddressSpentFrom(chunk.toArray(new String[chunk.size()]));
+		List<Boolean> result = new ArrayList<Boolean>(spent.length);
+		for (boolean s : spent)
+			result.add(s);
+		return result;
+	}));
+
+	/**
+	 * Constructor, probing of the nodes starts at once if there is more than one.
+	 *
+	 * @param nodes       the nodes, at least one
+	 * @param concurrency maximum number of concurrent requests to all nodes
+	 */
+	public TangleGateway(List<TangleNode> nodes, int concurrency) {
+		if (nodes.isEmpty())
+			throw new IllegalArgumentException("TangleGateway needs at least one node");
+		this.nodes = new ArrayList<TangleNode>(nodes);
+		AtomicInteger threadCount = new AtomicInteger();
+		requests = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), r -> {
+					Thread t = new Thread(r, "TangleGateway-" + threadCount.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		requests.allowCoreThreadTimeOut(true);
+		hedgeTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "TangleGateway-hedge");
+			t.setDaemon(true);
+			return t;
+		});
+
+		if (nodes.size() > 1 && nodeProbeSeconds > 0) {
+			probeTask = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "TangleGateway-probe");
+				t.setDaemon(true);
+				return t;
+			});
+			probeTask.scheduleWithFixedDelay(() -> {
+				try {
+					probe();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}, 0, nodeProbeSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Coalesced with the other balance requests of the window.
+	 * 
+	 * @return confirmed balances of the addresses, in the same order
+	 */
+	public CompletableFuture<long[]> getBalances(List<String> addresses) {
+		return balances.request(addresses).thenApply(values -> {
+			long[] result = new long[values.size()];
+			for (int i = 0; i < result.length; i++)
+				result[i] = values.get(i);
+			return result;
+		});
+	}
+
+	/**
+	 * Coalesced with the other spent requests of the window.
+	 * 
+	 * @return for each address if it was spent from
+	 */
+	public CompletableFuture<boolean[]> wereAddressesSpentFrom(String[] addresses) {
+		return spentStates.request(Arrays.asList(addresses)).thenApply(values -> {
+			boolean[] result = new boolean[values.size()];
+			for (int i = 0; i < result.length; i++)
+				result[i] = values.get(i);
+			return result;
+		});
+	}
+
+	/**
+	 * @return for each transaction hash if it is confirmed by the latest milestone
+	 */
+	public CompletableFuture<boolean[]> getLatestInclusion(String[] hashes) {
+		return read(api -> api.getLatestInclusion(hashes).getStates());
+	}
+
+	/**
+	 * Pins the requests of one attachment or promotion to the best node.
+	 * 
+	 * @return the requests to that node
+	 */
+	public Pinned pin() {
+		return new Pinned(ranked().get(0));
+	}
+
+	/**
+	 * Signs a bundle, run on the calling thread.
+	 *
+	 * @return the signed trytes of the bundle
+	 */
+	public CompletableFuture<List<String>> prepareTransfers(String seed, int security, List<Transfer> transfers,
+			List<Input> inputs) {
+		return local(api -> api.prepareTransfers(seed, security, transfers, null, inputs, null, false));
+	}
+
+	/**
+	 * Does the PoW of signed trytes on the given tips, run on the calling thread.
+	 *
+	 * @return the attached trytes
+	 */
+	public CompletableFuture<String[]> attachToTangle(String trunk, String branch, int minWeightMagnitude,
+			String[] trytes) {
+		return local(api -> api.attachToTangle(trunk, branch, minWeightMagnitude, trytes).getTrytes());
+	}
+
+	/**
+	 * @return requests sent to the node since program start
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * @return requests failed since program start
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * @return requests currently waiting for a free slot
+	 */
+	public int getQueued() {
+		return requests.getQueue().size();
+	}
+
+	/**
+	 * @return requests currently running
+	 */
+	public int getActive() {
+		return requests.getActiveCount();
+	}
+
+	/**
+	 * @return reads repeated on a second node because the first one was slow
+	 */
+	public long getHedgedCount() {
+		return hedgedCount.get();
+	}
+
+	/**
+	 * @return the nodes with their statistics
+	 */
+	public List<TangleNode> getNodes() {
+		return new ArrayList<TangleNode>(nodes);
+	}
+
+	@Override
+	public String toString() {
+		String str = " Node: " + getActive() + " of " + requests.getMaximumPoolSize() + " requests active, "
+				+ getQueued() + " queued (total: " + getRequestCount() + ", failed: " + getFailedCount() + ", hedged: "
+				+ getHedgedCount() + ")\n";
+		str += "  coalesced balances: " + balances + "   spent: " + spentStates;
+		for (TangleNode node : nodes)
+			str += "\n" + node;
+		return str;
+	}
+
+	// healthy nodes by score, all nodes if none is healthy
+	private List<TangleNode> ranked() {
+		List<TangleNode> result = new ArrayList<TangleNode>(nodes.size());
+		for (TangleNode node : nodes)
+			if (node.isHealthy())
+				result.add(node);
+		if (result.isEmpty())
+			result.addAll(nodes);
+		result.sort(Comparator.comparingDouble(TangleNode::getScore));
+		return result;
+	}
+
+	// read request, hedged on the next node if the first one is slow
+	private <T> CompletableFuture<T> read(NodeCall<T> call) {
+		Attempts<T> attempts = new Attempts<T>(call, ranked());
+		attempts.next();
+		if (nodeHedgeMillis > 0 && attempts.candidates.size() > 1) {
+			long delay = Math.max(nodeHedgeMillis, 2 * (long) attempts.candidates.get(0).getLatencyMillis());
+			hedgeTimer.schedule(() -> {
+				if (!attempts.result.isDone()) {
+					hedgedCount.incrementAndGet();
+					attempts.next();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+		return attempts.result;
+	}
+
+	// request to one node, not repeated on another one
+	private <T> CompletableFuture<T> on(TangleNode node, NodeCall<T> call) {
+		Attempts<T> attempts = new Attempts<T>(call, Collections.singletonList(node));
+		attempts.next();
+		return attempts.result;
+	}
+
+	// local work on the calling thread with the api of the best node, failures don't touch the node's health
+	private <T> CompletableFuture<T> local(NodeCall<T> call) {
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		try {
+			result.complete(call.call(ranked().get(0).getApi()));
+		} catch (Exception e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	// asks all nodes for their milestones, ejects lagging nodes and readmits healthy ones
+	private void probe() {
+		List<GetNodeInfoResponse> infos = new ArrayList<GetNodeInfoResponse>(nodes.size());
+		long latestMilestone = 0;
+		for (TangleNode node : nodes) {
+			GetNodeInfoResponse info = null;
+			long start = System.currentTimeMillis();
+			try {
+				info = node.getApi().getNodeInfo();
+				node.recordSuccess(System.currentTimeMillis() - start);
+				latestMilestone = Math.max(latestMilestone, info.getLatestMilestoneIndex());
+			} catch (Exception e) {
+				node.recordFailure(nodeMaxFailures);
+			}
+			infos.add(info);
+		}
+		for (int i = 0; i < nodes.size(); i++)
+			if (infos.get(i) != null)
+				nodes.get(i).recordProbe(latestMilestone - infos.get(i).getLatestSolidSubtangleMilestoneIndex(),
+						nodeMaxMilestoneLag);
+	}
+
+	// merges the requests for addresses arriving within nodeCoalesceMillis into chunked requests
+	private class Coalescer<T> {
+		private final Function<List<String>, CompletableFuture<List<T>>> fetch;
+		private LinkedHashMap<String, CompletableFuture<T>> pending = new LinkedHashMap<String, CompletableFuture<T>>();
+
+		private long requested = 0;
+		private long fetched = 0;
+		private long chunks = 0;
+
+		Coalescer(Function<List<String>, CompletableFuture<List<T>>> fetch) {
+			this.fetch = fetch;
+		}
+
+		CompletableFuture<List<T>> request(List<String> addresses) {
+			List<CompletableFuture<T>> results = new ArrayList<CompletableFuture<T>>(addresses.size());
+			synchronized (this) {
+				requested += addresses.size();
+				if (pending.isEmpty() && !addresses.isEmpty())
+					hedgeTimer.schedule(this::flush, Math.max(0, nodeCoalesceMillis), TimeUnit.MILLISECONDS);
+				for (String address : addresses)
+					results.add(pending.computeIfAbsent(address, a -> new CompletableFuture<T>()));
+			}
+			return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()])).thenApply(v -> {
+				List<T> values = new ArrayList<T>(results.size());
+				for (CompletableFuture<T> result : results)
+					values.add(result.join());
+				return values;
+			});
+		}
+
+		private void flush() {
+			List<Map.Entry<String, CompletableFuture<T>>> batch;
+			synchronized (this) {
+				batch = new ArrayList<Map.Entry<String, CompletableFuture<T>>>(pending.entrySet());
+				pending = new LinkedHashMap<String, CompletableFuture<T>>();
+				fetched += batch.size();
+			}
+			for (int from = 0; from < batch.size(); from += COALESCE_CHUNK) {
+				List<Map.Entry<String, CompletableFuture<T>>> chunk = batch.subList(from,
+						Math.min(from + COALESCE_CHUNK, batch.size()));
+				List<String> addresses = new ArrayList<String>(chunk.size());
+				chunk.forEach(e -> addresses.add(e.getKey()));
+				synchronized (this) {
+					chunks++;
+				}
+				fetch.apply(addresses).whenComplete((values, e) -> {
+					for (int i = 0; i < chunk.size(); i++)
+						if (e != null)
+							chunk.get(i).getValue().completeExceptionally(e);
+						else
+							chunk.get(i).getValue().complete(values.get(i));
+				});
+			}
+		}
+
+		@Override
+		public synchronized String toString() {
+			return requested + " requested, " + fetched + " fetched in " + chunks + " requests";
+		}
+	}
+
+	/**
+	 * The requests of one attachment or promotion, all sent to the same node.
+	 */
+	public class Pinned {
+		private final TangleNode node;
+
+		private Pinned(TangleNode node) {
+			this.node = node;
+		}
+
+		/**
+		 * @return true if the node considers the transactions consistent (promotable, usable as tips)
+		 */
+		public CompletableFuture<Boolean> checkConsistency(String... hashes) {
+			return on(node, api -> api.checkConsistency(hashes).getState());
+		}
+
+		/**
+		 * @return trunk and branch transaction for an attachment
+		 */
+		public CompletableFuture<GetTransactionsToApproveResponse> getTransactionsToApprove(int depth) {
+			return on(node, api -> api.getTransactionsToApprove(depth, null));
+		}
+
+		/**
+		 * Stores and broadcasts attached transactions.
+		 */
+		public CompletableFuture<Void> storeAndBroadcast(String[] trytes) {
+			return on(node, api -> {
+				api.storeTransactions(trytes);
+				api.broadcastTransactions(trytes);
+				return null;
+			});
+		}
+
+		/**
+		 * Promotes a tail transaction (tip selection, PoW and broadcast). The PoW is local, but done on a request
+		 * thread, as it can't be separated from the node requests of the promotion.
+		 */
+		public CompletableFuture<List<Transaction>> promoteTransaction(String tail, int depth, int minWeightMagnitude,
+				Bundle bundle) {
+			return on(node, api -> api.promoteTransaction(tail, depth, minWeightMagnitude, bundle));
+		}
+
+		@Override
+		public String toString() {
+			return node.getName();
+		}
+	}
+
+	/**
+	 * A request to one node.
+	 */
+	@FunctionalInterface
+	private interface NodeCall<T> {
+		T call(IotaAPI api) throws Exception;
+	}
+
+	// the attempts of one request on the ranked nodes, the first successful one completes the result
+	private class Attempts<T> {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		final NodeCall<T> call;
+		final List<TangleNode> candidates;
+		int next = 0;
+		int running = 0;
+
+		Attempts(NodeCall<T> call, List<TangleNode> candidates) {
+			this.call = call;
+			this.candidates = candidates;
+			requestCount.incrementAndGet();
+		}
+
+		// sends the request to the next candidate, if there is one
+		synchronized void next() {
+			if (result.isDone() || next >= candidates.size())
+				return;
+			TangleNode node = candidates.get(next++);
+			running++;
+			requests.execute(() -> run(node));
+		}
+
+		private void run(TangleNode node) {
+			if (result.isDone()) {
+				done(null);
+				return;
+			}
+			long start = System.currentTimeMillis();
+			try {
+				T value = call.call(node.getApi());
+				node.recordSuccess(System.currentTimeMillis() - start);
+				result.complete(value);
+				done(null);
+			} catch (Exception e) {
+				node.recordFailure(nodeMaxFailures);
+				done(e);
+			}
+		}
+
+		private synchronized void done(Exception e) {
+			running--;
+			if (e == null || result.isDone())
+				return;
+			if (next < candidates.size())
+				next();
+			else if (running == 0) {
+				failedCount.incrementAndGet();
+				result.completeExceptionally(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package de.topocare.topocareXiota.iotaMachineWallet;
+
+import jota.IotaAPI;
+
+/**
+ * One IOTA node used by the TangleGateway, with its health statistics.
+ * <p>
+ * The latency is a moving average (EWMA) of the successful requests. After
+ * maxFailures failed requests in a row, or if the node was found lagging behind
+ * the latest milestone, the node is ejected: it gets no requests until a probe
+ * of the TangleGateway finds it healthy again.
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public class TangleNode {
+
+	private static final double LATENCY_WEIGHT = 0.2;
+
+	private String name;
+	private IotaAPI api;
+
+	private long requests = 0;
+	private long errors = 0;
+	private int failuresInRow = 0;
+	private double latencyMillis = 0;
+	private long milestoneLag = 0;
+	private boolean ejected = false;
+	private boolean syncing = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name name of the node for the statistics, e.g. its URL
+	 * @param api  IotaAPI connected to the node
+	 */
+	public TangleNode(String name, IotaAPI api) {
+		this.name = name;
+		this.api = api;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public IotaAPI getApi() {
+		return api;
+	}
+
+	/**
+	 * Records a successful request.
+	 */
+	public synchronized void recordSuccess(long millis) {
+		requests++;
+		failuresInRow = 0;
+		latencyMillis = requests == 1 ? millis : latencyMillis + LATENCY_WEIGHT * (millis - latencyMillis);
+	}
+
+	/**
+	 * Records a failed request, ejects the node after maxFailures failures in a row.
+	 */
+	public synchronized void recordFailure(int maxFailures) {
+		requests++;
+		errors++;
+		failuresInRow++;
+		if (failuresInRow >= maxFailures)
+			ejected = true;
+	}
+
+	/**
+	 * Records the result of a probe, a node answering and not lagging behind is readmitted.
+	 *
+	 * @param milestoneLag milestones the node is behind (its solid milestone to the latest one known)
+	 * @param maxLag       maximum lag of a healthy node
+	 */
+	public synchronized void recordProbe(long milestoneLag, long maxLag) {
+		this.milestoneLag = milestoneLag;
+		syncing = milestoneLag > maxLag;
+		if (!syncing) {
+			ejected = false;
+			failuresInRow = 0;
+		}
+	}
+
+	/**
+	 * @return true if the node gets requests
+	 */
+	public synchronized boolean isHealthy() {
+		return !ejected && !syncing;
+	}
+
+	/**
+	 * @return moving average of the request latency in ms
+	 */
+	public synchronized double getLatencyMillis() {
+		return latencyMillis;
+	}
+
+	/**
+	 * @return rank of the node, lower is better: latency, increased by the share of failed requests
+	 */
+	public synchronized double getScore() {
+		double errorRate = requests == 0 ? 0 : (double) errors / requests;
+		return latencyMillis * (1 + 10 * errorRate);
+	}
+
+	public synchronized long getRequests() {
+		return requests;
+	}
+
+	public synchronized long getErrors() {
+		return errors;
+	}
+
+	public synchronized long getMilestoneLag() {
+		return milestoneLag;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "  " + name + (ejected ? " [ejected]" : syncing ? " [syncing]" : "") + "  latency: "
+				+ Math.round(latencyMillis) + " ms  requests: " + requests + "  errors: " + errors + "  lag: "
+				+ milestoneLag;
+	}
+}
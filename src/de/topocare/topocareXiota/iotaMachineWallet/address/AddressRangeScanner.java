@@ -0,0 +1,244 @@
+package de.topocare.topocareXiota.iotaMachineWallet.address;
+
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.gateway;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+
+
+/**
+ * Scans a keyIndex range of the seed for balances and spent addresses.
+ * <p>
+ * The range is split into chunks. For each chunk the addresses are derived (in
+ * parallel, see IotaAddress.newListOfUncheckedAddressesParallel),
+ * then getBalances and checkWereAddressSpentFrom are requested at the same
+ * time by the TangleGateway. Several chunks are processed concurrently, limited by the number of
+ * chunks in flight, so derivation of one chunk overlaps with the node requests
+ * of others.
+ * <p>
+ * The node requests of a failed chunk are repeated up to CHUNK_ATTEMPTS times.
+ * A chunk failing on every attempt makes the whole scan fail, a wallet started
+ * on an incomplete scan would miss balances and reuse spent addresses.
+ * <p>
+ * Progress and timing are reported on System.out.
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public class AddressRangeScanner {
+
+	/**
+	 * Tries of the node requests of one chunk.
+	 */
+	private static final int CHUNK_ATTEMPTS = 3;
+
+	private int chunkSize;
+	private int maxChunksInFlight;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param chunkSize         addresses per node request
+	 * @param maxChunksInFlight chunks processed at the same time
+	 */
+	public AddressRangeScanner(int chunkSize, int maxChunksInFlight) {
+		this.chunkSize = Math.max(1, chunkSize);
+		this.maxChunksInFlight = Math.max(1, maxChunksInFlight);
+	}
+
+	/**
+	 * Scans all addresses from firstKeyIndex to lastKeyIndex (both inclusive).
+	 * 
+	 * @param firstKeyIndex first keyIndex to scan
+	 * @param lastKeyIndex  last keyIndex to scan
+	 * @param skipKeyIndex  keyIndexes not to be scanned (e.g. receiving pool),
+	 *                      may be null
+	 * @return the result of the scan
+	 * @throws RuntimeException if a chunk can't be scanned
+	 */
+	public ScanResult scan(int firstKeyIndex, int lastKeyIndex, IntPredicate skipKeyIndex) {
+		long startTime = System.currentTimeMillis();
+		int addressCount = Math.max(0, lastKeyIndex - firstKeyIndex + 1);
+		int chunks = (addressCount + chunkSize - 1) / chunkSize;
+
+		List<ChunkResult> chunkResults = new ArrayList<ChunkResult>(chunks);
+		for (int i = 0; i < chunks; i++)
+			chunkResults.add(null);
+
+		ExecutorService executor = Executors.newFixedThreadPool(maxChunksInFlight);
+		Semaphore inFlight = new Semaphore(maxChunksInFlight);
+		AtomicInteger scanned = new AtomicInteger(0);
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>(chunks);
+
+		try {
+			for (int c = 0; c < chunks; c++) {
+				int chunk = c;
+				int start = firstKeyIndex + c * chunkSize;
+				int end = Math.min(start + chunkSize - 1, lastKeyIndex);
+
+				inFlight.acquireUninterruptibly();
+				CompletableFuture<List<IotaAddress>> derived = CompletableFuture.supplyAsync(() -> {
+					List<IotaAddress> addresses = IotaAddress.newListOfUncheckedAddressesParallel(start, end);
+					if (skipKeyIndex != null)
+						addresses.removeIf(e -> skipKeyIndex.test(e.getKeyIndex()));
+					return addresses;
+				}, executor);
+
+				CompletableFuture<Void> done = derived.thenCompose(addresses -> request(addresses, start, end, 1))
+						.handle((result, e) -> {
+							if (e != null) {
+								System.err.println("scan of keyIndex " + start + " to " + end + " failed");
+								e.printStackTrace();
+							} else
+								chunkResults.set(chunk, result);
+							inFlight.release();
+							System.out.println("scanned " + scanned.addAndGet(end - start + 1) + "/" + addressCount
+									+ " addresses (" + (System.currentTimeMillis() - startTime) + " ms)");
+							return null;
+						});
+				futures.add(done);
+			}
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+		} finally {
+			executor.shutdown();
+		}
+
+		int failedChunks = 0;
+		for (ChunkResult chunkResult : chunkResults)
+			if (chunkResult == null)
+				failedChunks++;
+		if (failedChunks > 0)
+			throw new RuntimeException("scan of keyIndex " + firstKeyIndex + " to " + lastKeyIndex + " incomplete, "
+					+ failedChunks + " of " + chunks + " chunks failed");
+
+		ScanResult result = new ScanResult();
+		for (ChunkResult chunkResult : chunkResults) {
+			for (int i = 0; i < chunkResult.addresses.size(); i++) {
+				IotaAddress address = chunkResult.addresses.get(i);
+				long balance = chunkResult.balances[i];
+				if (balance != 0) {
+					address.setBalance(balance);
+					result.addressesWithBalance.add(address);
+					result.highestKeyIndexWithBalance = Math.max(result.highestKeyIndexWithBalance,
+							address.getKeyIndex());
+				}
+				if (chunkResult.spent[i])
+					result.highestKeyIndexSpentFrom = Math.max(result.highestKeyIndexSpentFrom, address.getKeyIndex());
+			}
+		}
+		System.out.println("scan of keyIndex " + firstKeyIndex + " to " + lastKeyIndex + " done in "
+				+ (System.currentTimeMillis() - startTime) + " ms, " + result.addressesWithBalance.size()
+				+ " addresses with balance");
+		return result;
+	}
+
+	// getBalances and checkWereAddressSpentFrom of one chunk, repeated on failure up to CHUNK_ATTEMPTS times
+	private CompletableFuture<ChunkResult> request(List<IotaAddress> addresses, int start, int end, int attempt) {
+		if (addresses.isEmpty())
+			return CompletableFuture.completedFuture(new ChunkResult(addresses, new long[0], new boolean[0]));
+		CompletableFuture<long[]> balances = gateway.getBalances(IotaAddress.asStringList_getAddress(addresses));
+		CompletableFuture<boolean[]> spent = gateway
+				.wereAddressesSpentFrom(IotaAddress.asStringArray_getAddress(addresses));
+		return balances.thenCombine(spent, (b, s) -> new ChunkResult(addresses, b, s))
+				.handle((result, e) -> {
+					if (e == null)
+						return CompletableFuture.completedFuture(result);
+					if (attempt >= CHUNK_ATTEMPTS) {
+						CompletableFuture<ChunkResult> failed = new CompletableFuture<ChunkResult>();
+						failed.completeExceptionally(e);
+						return failed;
+					}
+					System.err.println("scan of keyIndex " + start + " to " + end + " failed (attempt " + attempt
+							+ "), repeating: " + e.getCause());
+					return request(addresses, start, end, attempt + 1);
+				}).thenCompose(f -> f);
+	}
+
+	/**
+	 * Scans forward from firstKeyIndex in growing batches until gapLimit
+	 * consecutive scanned addresses are unused (no balance, never spent from).
+	 * There is no upper bound, the scan continues as long as used addresses are
+	 * found.
+	 * 
+	 * @param firstKeyIndex first keyIndex to scan
+	 * @param gapLimit      number of consecutive unused addresses ending the scan
+	 * @param skipKeyIndex  keyIndexes not to be scanned (e.g. receiving pool), not
+	 *                      counted as unused, may be null
+	 * @return the combined result of all batches
+	 * @throws RuntimeException if a chunk can't be scanned
+	 */
+	public ScanResult scanWithGapLimit(int firstKeyIndex, int gapLimit, IntPredicate skipKeyIndex) {
+		long startTime = System.currentTimeMillis();
+		ScanResult result = new ScanResult();
+		int batchSize = Math.max(gapLimit, chunkSize);
+		int maxBatchSize = chunkSize * maxChunksInFlight * 4;
+		int nextKeyIndex = firstKeyIndex;
+
+		while (true) {
+			int lastKeyIndex = nextKeyIndex + batchSize - 1;
+			result.add(scan(nextKeyIndex, lastKeyIndex, skipKeyIndex));
+
+			// unused addresses after the highest used one
+			int highestUsed = Math.max(result.highestKeyIndexWithBalance, result.highestKeyIndexSpentFrom);
+			int gap = 0;
+			for (int keyIndex = Math.max(highestUsed + 1, firstKeyIndex); keyIndex <= lastKeyIndex; keyIndex++)
+				if (skipKeyIndex == null || !skipKeyIndex.test(keyIndex))
+					gap++;
+
+			if (gap >= gapLimit)
+				break;
+
+			nextKeyIndex = lastKeyIndex + 1;
+			batchSize = Math.min(batchSize * 2, Math.max(maxBatchSize, batchSize));
+		}
+		System.out.println("gap limit scan from keyIndex " + firstKeyIndex + " done in "
+				+ (System.currentTimeMillis() - startTime) + " ms");
+		return result;
+	}
+
+	/**
+	 * Result of a scan.
+	 */
+	public static class ScanResult {
+		/**
+		 * addresses with balance (set in the IotaAddress), ordered by keyIndex
+		 */
+		public List<IotaAddress> addressesWithBalance = new ArrayList<IotaAddress>();
+
+		/**
+		 * highest scanned keyIndex with balance, 0 if none
+		 */
+		public int highestKeyIndexWithBalance = 0;
+
+		/**
+		 * highest scanned keyIndex that was spent from, 0 if none
+		 */
+		public int highestKeyIndexSpentFrom = 0;
+
+		/**
+		 * Adds the result of a scan of a following range to this result.
+		 */
+		void add(ScanResult following) {
+			addressesWithBalance.addAll(following.addressesWithBalance);
+			highestKeyIndexWithBalance = Math.max(highestKeyIndexWithBalance, following.highestKeyIndexWithBalance);
+			highestKeyIndexSpentFrom = Math.max(highestKeyIndexSpentFrom, following.highestKeyIndexSpentFrom);
+		}
+	}
+
+	private static class ChunkResult {
+		List<IotaAddress> addresses;
+		long[] balances;
+		boolean[] spent;
+
+		ChunkResult(List<IotaAddress> addresses, long[] balances, boolean[] spent) {
+			this.addresses = addresses;
+			this.balances = balances;
+			this.spent = spent;
+		}
+	}
+}
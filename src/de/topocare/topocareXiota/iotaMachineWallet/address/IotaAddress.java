@@ -5,6 +5,8 @@ import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.*;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import jota.error.ArgumentException;
 import jota.model.Input;
@@ -45,7 +47,13 @@ public class IotaAddress {
 			this.keyIndex = keyIndex;
 			// address = api.getAddressesUnchecked(seed, security, false, keyIndex,
 			// 1).first();
-			addressWithChecksum = api.getAddressesUnchecked(seed, security, true, keyIndex, 1).first();
+			if (addressCache != null)
+				addressWithChecksum = addressCache.get(keyIndex);
+			if (addressWithChecksum == null) {
+				addressWithChecksum = api.getAddressesUnchecked(seed, security, true, keyIndex, 1).first();
+				if (addressCache != null)
+					addressCache.put(keyIndex, addressWithChecksum);
+			}
 			address = addressWithChecksum.substring(0, 81);
 			this.balance = balance;
 
@@ -215,6 +223,9 @@ public class IotaAddress {
 	/**
 	 * Returns a list of new IotaAddress-Objects, containing all addresses from the
 	 * startKeyIndex to the endKeyIndex (both inclusive).
+	 * <p>
+	 * Addresses found in the addressCache (IotaConfig) are read from there, missing
+	 * ranges are derived and added to the cache.
 	 * 
 	 * @param startKeyIndex   keyIndex of the first address in the list
 	 * @param endKeyIndex     keyIndex of the last address in the list
@@ -230,12 +241,31 @@ public class IotaAddress {
 		return result;
 		*/
 		List<IotaAddress> result = new ArrayList<IotaAddress>();
-		List<String> addressesWithChecksum = new ArrayList<String>();
 		try {
-			addressesWithChecksum = api.getAddressesUnchecked(seed, security, true, startKeyIndex, endKeyIndex-startKeyIndex+1).getAddresses();
-			for (int i = 0; i<addressesWithChecksum.size(); i++)
-			{
-				result.add(new IotaAddress(addressesWithChecksum.get(i), startKeyIndex+i, startingBalance));
+			int keyIndex = startKeyIndex;
+			while (keyIndex <= endKeyIndex) {
+				String cached = (addressCache != null) ? addressCache.get(keyIndex) : null;
+				if (cached != null) {
+					result.add(new IotaAddress(cached, keyIndex, startingBalance));
+					keyIndex++;
+					continue;
+				}
+
+				// derive the missing range up to the next cached address at once
+				int missingEnd = keyIndex;
+				while (addressCache != null && missingEnd < endKeyIndex && !addressCache.contains(missingEnd + 1))
+					missingEnd++;
+				if (addressCache == null)
+					missingEnd = endKeyIndex;
+
+				List<String> addressesWithChecksum = api
+						.getAddressesUnchecked(seed, security, true, keyIndex, missingEnd - keyIndex + 1).getAddresses();
+				for (int i = 0; i < addressesWithChecksum.size(); i++) {
+					result.add(new IotaAddress(addressesWithChecksum.get(i), keyIndex + i, startingBalance));
+					if (addressCache != null)
+						addressCache.put(keyIndex + i, addressesWithChecksum.get(i));
+				}
+				keyIndex = missingEnd + 1;
 			}
 
 		} catch (ArgumentException e) {
@@ -245,4 +275,67 @@ public class IotaAddress {
 		return result;
 		
 	}
+
+	/**
+	 * Returns a list of new IotaAddress-Objects, containing all addresses from the
+	 * startKeyIndex to the endKeyIndex (both inclusive). Same result as
+	 * newListOfUncheckedAddresses, but the range is split into slices derived in
+	 * parallel on the ForkJoinPool.commonPool().
+	 * 
+	 * @param startKeyIndex keyIndex of the first address in the list
+	 * @param endKeyIndex   keyIndex of the last address in the list
+	 * @return list of new IotaAddress-Objects, ordered by keyIndex
+	 */
+	public static List<IotaAddress> newListOfUncheckedAddressesParallel(int startKeyIndex, int endKeyIndex) {
+		return newListOfUncheckedAddressesParallel(startKeyIndex, endKeyIndex, 0);
+	}
+
+	/**
+	 * Returns a list of new IotaAddress-Objects, containing all addresses from the
+	 * startKeyIndex to the endKeyIndex (both inclusive). Same result as
+	 * newListOfUncheckedAddresses, but the range is split into slices derived in
+	 * parallel on the ForkJoinPool.commonPool().
+	 * 
+	 * @param startKeyIndex   keyIndex of the first address in the list
+	 * @param endKeyIndex     keyIndex of the last address in the list
+	 * @param startingBalance Initial balance of the addresses, no check on tangle.
+	 * @return list of new IotaAddress-Objects, ordered by keyIndex
+	 */
+	public static List<IotaAddress> newListOfUncheckedAddressesParallel(int startKeyIndex, int endKeyIndex,
+			int startingBalance) {
+		if (endKeyIndex < startKeyIndex)
+			return new ArrayList<IotaAddress>();
+		return ForkJoinPool.commonPool().invoke(new DeriveRange(startKeyIndex, endKeyIndex, startingBalance));
+	}
+
+	/**
+	 * Derives a keyIndex range, splitting it in halves until the slice is small
+	 * enough to be derived by one worker.
+	 */
+	private static class DeriveRange extends RecursiveTask<List<IotaAddress>> {
+		private static final long serialVersionUID = 1L;
+		private static final int SLICE_SIZE = 25;
+
+		private int startKeyIndex, endKeyIndex, startingBalance;
+
+		DeriveRange(int startKeyIndex, int endKeyIndex, int startingBalance) {
+			this.startKeyIndex = startKeyIndex;
+			this.endKeyIndex = endKeyIndex;
+			this.startingBalance = startingBalance;
+		}
+
+		@Override
+		protected List<IotaAddress> compute() {
+			if (endKeyIndex - startKeyIndex < SLICE_SIZE)
+				return newListOfUncheckedAddresses(startKeyIndex, endKeyIndex, startingBalance);
+
+			int middle = startKeyIndex + (endKeyIndex - startKeyIndex) / 2;
+			DeriveRange lower = new DeriveRange(startKeyIndex, middle, startingBalance);
+			DeriveRange upper = new DeriveRange(middle + 1, endKeyIndex, startingBalance);
+			upper.fork();
+			List<IotaAddress> result = lower.compute();
+			result.addAll(upper.join());
+			return result;
+		}
+	}
 }
@@ -0,0 +1,192 @@
+package de.topocare.topocareXiota.iotaMachineWallet.address;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import jota.utils.Converter;
+
+/**
+ * Persistent, memory-mapped cache of derived addresses (with checksum) for one
+ * seed and security level, indexed by keyIndex.
+ * <p>
+ * Address derivation is expensive, this cache lets restarts read already
+ * derived addresses instead of computing them again. The file contains only
+ * addresses, the seed is represented by a fingerprint (part of a SHA-256 hash)
+ * in the file name.
+ * <p>
+ * Each keyIndex has a fixed slot of 59 bytes: one byte marking the slot as
+ * used, followed by the 270 trits of the address with checksum, packed with 5
+ * trits per byte, and a CRC32 of keyIndex and packed trits. The mapped file is
+ * not forced, a slot torn by a crash or damaged on disk fails the CRC and is
+ * treated as missing, so the address is derived and stored again.
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public class IotaAddressCache {
+
+	private static final int ADDRESS_TRITS = 270;
+	private static final int TRITS_PER_BYTE = 5;
+	private static final int PACKED_SIZE = ADDRESS_TRITS / TRITS_PER_BYTE;
+	private static final int SLOT_SIZE = 1 + PACKED_SIZE + 4;
+	private static final int SLOTS_PER_SEGMENT = 4096;
+	private static final byte SLOT_USED = 1;
+
+	private FileChannel channel;
+	private Map<Integer, MappedByteBuffer> segments = new HashMap<Integer, MappedByteBuffer>();
+
+	private long hits = 0;
+	private long misses = 0;
+	private long corrupted = 0;
+	private CRC32 crc = new CRC32();
+	private byte[] packed = new byte[PACKED_SIZE];
+
+	/**
+	 * Constructor, opens (or creates) the cache file for the given seed and
+	 * security in the directory.
+	 * 
+	 * @param directory directory of the cache files, created if missing
+	 * @param seed      seed of the wallet, only used for the fingerprint
+	 * @param security  security level of the addresses
+	 * @throws IOException if the cache file can't be opened
+	 */
+	public IotaAddressCache(String directory, String seed, int security) throws IOException {
+		File dir = new File(directory);
+		dir.mkdirs();
+		// v2: slots with CRC
+		File file = new File(dir, "addresses_" + fingerprint(seed) + "_" + security + "_v2.bin");
+		channel = new RandomAccessFile(file, "rw").getChannel();
+	}
+
+	/**
+	 * @param keyIndex keyIndex of the address
+	 * @return the address with checksum, or null if not cached or the slot is
+	 *         damaged
+	 */
+	public synchronized String get(int keyIndex) {
+		MappedByteBuffer segment = segment(keyIndex);
+		int position = (keyIndex % SLOTS_PER_SEGMENT) * SLOT_SIZE;
+		if (segment == null || segment.get(position) != SLOT_USED) {
+			misses++;
+			return null;
+		}
+		for (int b = 0; b < PACKED_SIZE; b++)
+			packed[b] = segment.get(position + 1 + b);
+		if (segment.getInt(position + 1 + PACKED_SIZE) != checksum(keyIndex, packed)) {
+			// derived and stored again by the caller
+			segment.put(position, (byte) 0);
+			corrupted++;
+			misses++;
+			return null;
+		}
+		hits++;
+
+		int[] trits = new int[ADDRESS_TRITS];
+		for (int b = 0; b < PACKED_SIZE; b++) {
+			int value = packed[b] & 0xFF;
+			for (int t = 0; t < TRITS_PER_BYTE; t++) {
+				trits[b * TRITS_PER_BYTE + t] = value % 3 - 1;
+				value /= 3;
+			}
+		}
+		return Converter.trytes(trits);
+	}
+
+	/**
+	 * @param keyIndex keyIndex of the address
+	 * @return true if the address is cached, not counted as hit or miss
+	 */
+	public synchronized boolean contains(int keyIndex) {
+		MappedByteBuffer segment = segment(keyIndex);
+		return segment != null && segment.get((keyIndex % SLOTS_PER_SEGMENT) * SLOT_SIZE) == SLOT_USED;
+	}
+
+	/**
+	 * Stores an address in the cache.
+	 * 
+	 * @param keyIndex            keyIndex of the address
+	 * @param addressWithChecksum the 90-trytes address
+	 */
+	public synchronized void put(int keyIndex, String addressWithChecksum) {
+		MappedByteBuffer segment = segment(keyIndex);
+		if (segment == null)
+			return;
+		int position = (keyIndex % SLOTS_PER_SEGMENT) * SLOT_SIZE;
+
+		int[] trits = Converter.trits(addressWithChecksum);
+		for (int b = 0; b < PACKED_SIZE; b++) {
+			int value = 0;
+			for (int t = TRITS_PER_BYTE; t-- > 0;)
+				value = value * 3 + trits[b * TRITS_PER_BYTE + t] + 1;
+			packed[b] = (byte) value;
+		}
+		segment.put(position, (byte) 0);
+		for (int b = 0; b < PACKED_SIZE; b++)
+			segment.put(position + 1 + b, packed[b]);
+		segment.putInt(position + 1 + PACKED_SIZE, checksum(keyIndex, packed));
+		// mark as used after the address is complete
+		segment.put(position, SLOT_USED);
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return number of slots failing the CRC, counted as misses too
+	 */
+	public synchronized long getCorrupted() {
+		return corrupted;
+	}
+
+	// CRC32 of keyIndex and packed trits, so a slot written for another keyIndex fails too
+	private int checksum(int keyIndex, byte[] packed) {
+		crc.reset();
+		crc.update(keyIndex >>> 24);
+		crc.update(keyIndex >>> 16);
+		crc.update(keyIndex >>> 8);
+		crc.update(keyIndex);
+		crc.update(packed, 0, packed.length);
+		return (int) crc.getValue();
+	}
+
+	// maps the segment containing the keyIndex, null if mapping is not possible
+	private MappedByteBuffer segment(int keyIndex) {
+		int segmentIndex = keyIndex / SLOTS_PER_SEGMENT;
+		MappedByteBuffer segment = segments.get(segmentIndex);
+		if (segment == null) {
+			try {
+				segment = channel.map(FileChannel.MapMode.READ_WRITE,
+						(long) segmentIndex * SLOTS_PER_SEGMENT * SLOT_SIZE, (long) SLOTS_PER_SEGMENT * SLOT_SIZE);
+				segments.put(segmentIndex, segment);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return segment;
+	}
+
+	private static String fingerprint(String seed) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(seed.getBytes(StandardCharsets.US_ASCII));
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 8; i++)
+				sb.append(String.format("%02x", hash[i]));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -1,12 +1,18 @@
 package de.topocare.topocareXiota.iotaMachineWallet.address;
 
-import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.api;
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.gateway;
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.freeAddressReservoirSize;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import jota.dto.response.GetBalancesResponse;
-import jota.error.ArgumentException;
 
 /**
  * Searches for unused IotaAddress(es) on the seed and security defined in
@@ -16,11 +22,31 @@ import jota.error.ArgumentException;
  * <code>checkWereAddressSpentFrom</code> and <code>getBalances</code> to
  * determine if address is free (unused), and never return the same address
  * twice
+ * <p>
+ * If freeAddressReservoirSize (IotaConfig) is greater than 0, a background task
+ * keeps that many verified free addresses in a reservoir and re-validates them
+ * periodically. Addresses are then handed out from the reservoir without any
+ * node request, callers holding a pool monitor are not stalled by the network.
+ * Addresses not re-validated within RESERVOIR_MAX_AGE_SECONDS (node not
+ * reachable) are dropped instead of handed out. Only if the reservoir runs empty
+ * the search is done by the calling thread. A search started before
+ * setKeyIndexCount() does not refill the reservoir.
  * 
  * @author Stefan Kuenne [info@topocare.de]
  */
 public class IotaFreeAddressFactory {
 
+	/**
+	 * Seconds between two re-validations of the reservoir.
+	 */
+	private static final int RESERVOIR_REVALIDATION_SECONDS = 30;
+
+	/**
+	 * Seconds since the last validation after which an address of the reservoir
+	 * is not handed out anymore.
+	 */
+	private static final int RESERVOIR_MAX_AGE_SECONDS = 2 * RESERVOIR_REVALIDATION_SECONDS;
+
 	/**
 	 * Constructor, first search will begin at keyIndex 0.
 	 */
@@ -35,65 +61,180 @@ public class IotaFreeAddressFactory {
 	 */
 	public IotaFreeAddressFactory(int startingKeyIndexCount) {
 		this.keyIndexCount = startingKeyIndexCount;
+
+		if (freeAddressReservoirSize > 0) {
+			reservoirTask = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "IotaFreeAddressReservoir");
+				t.setDaemon(true);
+				return t;
+			});
+			reservoirTask.scheduleWithFixedDelay(() -> refreshReservoir(), 0, RESERVOIR_REVALIDATION_SECONDS,
+					TimeUnit.SECONDS);
+		}
 	}
 
 	private int keyIndexCount;
 
+	private ConcurrentLinkedQueue<Reserved> reservoir = new ConcurrentLinkedQueue<Reserved>();
+	private ScheduledExecutorService reservoirTask;
+	private AtomicBoolean refillRequested = new AtomicBoolean(false);
+	// counted up by setKeyIndexCount(), the results of older searches are dropped
+	private int generation = 0;
+
 	/**
 	 * @return keyIndex, where next search will start
 	 */
-	public int getKeyIndexCount() {
+	public synchronized int getKeyIndexCount() {
 		return keyIndexCount;
 	}
 
 	/**
-	 * set keyIndex, where next search will start
+	 * set keyIndex, where next search will start. Clears the reservoir.
 	 */
-	public void setKeyIndexCount(int keyIndexCount) {
+	public synchronized void setKeyIndexCount(int keyIndexCount) {
 		this.keyIndexCount = keyIndexCount;
+		generation++;
+		reservoir.clear();
+		requestRefill();
+	}
+
+	/**
+	 * @return number of verified free addresses ready in the reservoir
+	 */
+	public int getReservoirSize() {
+		return reservoir.size();
 	}
 
 	/**
 	 * @return next free (unused) IotaAddress
 	 */
-	public synchronized IotaAddress getNextFreeAddress() {
+	public IotaAddress getNextFreeAddress() {
 		return getNextFreeAddresses(1).get(0);
 	}
 
 	/**
 	 * @param amount how many addresses
 	 * @return List containing the next free (unused) IotaAddress(es)
+	 * @throws RuntimeException if the reservoir runs empty and the node can't be
+	 *                          asked whether the addresses are free
+	 */
+	public List<IotaAddress> getNextFreeAddresses(int amount) {
+		List<IotaAddress> result = new ArrayList<IotaAddress>(amount);
+		long oldest = System.currentTimeMillis() - RESERVOIR_MAX_AGE_SECONDS * 1000L;
+		Reserved polled;
+		while (result.size() < amount && (polled = reservoir.poll()) != null)
+			if (polled.validated >= oldest)
+				result.add(polled.address);
+
+		if (result.size() < amount)
+			result.addAll(searchFreeAddresses(amount - result.size()));
+
+		requestRefill();
+		return result;
+	}
+
+	/**
+	 * Searches free addresses on the tangle, starting at keyIndexCount.
 	 */
-	public synchronized List<IotaAddress> getNextFreeAddresses(int amount) {
+	private synchronized List<IotaAddress> searchFreeAddresses(int amount) {
+		List<IotaAddress> result = new ArrayList<IotaAddress>(amount);
+		while (result.size() < amount) {
+			int missing = amount - result.size();
+			List<IotaAddress> generatedAddresses = IotaAddress.newListOfUncheckedAddresses(keyIndexCount,
+					keyIndexCount + missing - 1);
+			result.addAll(removeUsed(generatedAddresses));
+			keyIndexCount += missing;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the addresses neither spent from nor holding balance
+	 * @throws RuntimeException if the node can't be asked
+	 */
+	private static List<IotaAddress> removeUsed(List<IotaAddress> addresses) {
 		try {
-			List<IotaAddress> generatedAddresses = new ArrayList<IotaAddress>();
-			for (int i = 0; i < amount; i++)
-				generatedAddresses.add(new IotaAddress(keyIndexCount + i));
-
-			boolean wereSpendFrom[] = api
-					.checkWereAddressSpentFrom(IotaAddress.asStringArray_getAddress(generatedAddresses));
-			GetBalancesResponse res2_object = api.getBalances(100,
-					IotaAddress.asStringList_getAddress(generatedAddresses));
-			String balance_asString[] = res2_object.getBalances();
-
-			List<IotaAddress> usedAddresses = new ArrayList<IotaAddress>();
-			for (int i = 0; i < amount; i++) {
-				if (wereSpendFrom[i] || !(balance_asString[i].equals("0")))
-					usedAddresses.add(generatedAddresses.get(i));
-			}
+			// both requests run concurrently
+			CompletableFuture<boolean[]> spent = gateway
+					.wereAddressesSpentFrom(IotaAddress.asStringArray_getAddress(addresses));
+			CompletableFuture<long[]> balances = gateway.getBalances(IotaAddress.asStringList_getAddress(addresses));
+			boolean wereSpendFrom[] = spent.join();
+			long balance[] = balances.join();
+
+			List<IotaAddress> free = new ArrayList<IotaAddress>(addresses.size());
+			for (int i = 0; i < addresses.size(); i++)
+				if (!wereSpendFrom[i] && balance[i] == 0)
+					free.add(addresses.get(i));
+			return free;
+
+		} catch (CompletionException e) {
+			throw new RuntimeException("free addresses can't be checked, keyIndex " + addresses.get(0).getKeyIndex()
+					+ " to " + addresses.get(addresses.size() - 1).getKeyIndex(), e.getCause());
+		}
+	}
 
-			generatedAddresses.removeAll(usedAddresses);
-			keyIndexCount += amount;
-			if (generatedAddresses.size() < amount)
-				generatedAddresses.addAll(getNextFreeAddresses(amount - generatedAddresses.size()));
-			return generatedAddresses;
+	// starts a refill of the reservoir in the background, if not already pending
+	private void requestRefill() {
+		if (reservoirTask != null && refillRequested.compareAndSet(false, true))
+			reservoirTask.execute(() -> {
+				refillRequested.set(false);
+				fillReservoir();
+			});
+	}
 
-		} catch (ArgumentException e) {
-			// TODO Auto-generated catch block
+	// re-validates all addresses in the reservoir, then fills it up
+	private void refreshReservoir() {
+		try {
+			List<Reserved> toValidate = new ArrayList<Reserved>(reservoir);
+			if (!toValidate.isEmpty()) {
+				List<IotaAddress> addresses = new ArrayList<IotaAddress>(toValidate.size());
+				toValidate.forEach(e -> addresses.add(e.address));
+				long validated = System.currentTimeMillis();
+				List<IotaAddress> free = removeUsed(addresses);
+				for (Reserved reserved : toValidate)
+					if (free.contains(reserved.address))
+						reserved.validated = validated;
+					else
+						reservoir.remove(reserved);
+			}
+		} catch (Exception e) {
+			// keep the reservoir, validation will be repeated, addresses exceeding the max age are not handed out
 			e.printStackTrace();
-			return null;
 		}
+		fillReservoir();
+	}
 
+	private void fillReservoir() {
+		try {
+			int missing = freeAddressReservoirSize - reservoir.size();
+			if (missing > 0) {
+				int searchGeneration;
+				synchronized (this) {
+					searchGeneration = generation;
+				}
+				long validated = System.currentTimeMillis();
+				List<IotaAddress> searched = searchFreeAddresses(missing);
+				synchronized (this) {
+					// the keyIndexCount was set during the search
+					if (searchGeneration == generation)
+						searched.forEach(e -> reservoir.add(new Reserved(e, validated)));
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
 	}
 
+	/**
+	 * An address of the reservoir and the time it was last found free.
+	 */
+	private static class Reserved {
+		final IotaAddress address;
+		volatile long validated;
+
+		Reserved(IotaAddress address, long validated) {
+			this.address = address;
+			this.validated = validated;
+		}
+	}
 }
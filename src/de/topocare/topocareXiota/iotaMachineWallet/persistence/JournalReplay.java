@@ -0,0 +1,197 @@
+package de.topocare.topocareXiota.iotaMachineWallet.persistence;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * State of the pools as described by the records of a PoolJournal, optionally
+ * starting from a PoolSnapshot.
+ * <p>
+ * Contains the addresses in each pool, the PoolTransactions not yet committed
+ * or rolled back and the attached TangleTransactions not yet confirmed.
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public class JournalReplay {
+
+	/**
+	 * Addresses in a pool (keyIndex to balance), by pool id. Not tracked for the
+	 * receiving pool, its balances are read from the tangle.
+	 */
+	public Map<Byte, LinkedHashMap<Integer, Long>> content = new HashMap<Byte, LinkedHashMap<Integer, Long>>();
+
+	/**
+	 * PoolTransactions neither committed nor rolled back, by id.
+	 */
+	public LinkedHashMap<Long, PendingTransaction> pendingTransactions = new LinkedHashMap<Long, PendingTransaction>();
+
+	/**
+	 * TangleTransactions attached but not confirmed, by id.
+	 */
+	public LinkedHashMap<Long, PendingBundle> pendingBundles = new LinkedHashMap<Long, PendingBundle>();
+
+	/**
+	 * Highest keyIndex found in the journal, -1 if none.
+	 */
+	public int maxKeyIndex = -1;
+
+	/**
+	 * Number of records replayed, including the records covered by a snapshot.
+	 */
+	public int records = 0;
+
+	/**
+	 * keyIndices of all addresses found in the replayed records. Not part of a
+	 * snapshot, so after loading one it only contains the addresses touched
+	 * since the snapshot was taken.
+	 */
+	public Set<Integer> touched = new HashSet<Integer>();
+
+	long maxId = 0;
+
+	/**
+	 * @return true if the journal contained no records
+	 */
+	public boolean isEmpty() {
+		return records == 0;
+	}
+
+	/**
+	 * @return content of the pool, empty if none
+	 */
+	public LinkedHashMap<Integer, Long> contentOf(byte poolId) {
+		return content.computeIfAbsent(poolId, p -> new LinkedHashMap<Integer, Long>());
+	}
+
+	void apply(ByteBuffer record) {
+		byte type = record.get();
+		if (type == PoolJournal.EPOCH || type == PoolJournal.ROTATED)
+			return;
+		records++;
+		switch (type) {
+		case PoolJournal.CONTENT: {
+			byte poolId = record.get();
+			contentOf(poolId).putAll(readAddresses(record));
+			break;
+		}
+		case PoolJournal.GIVE:
+		case PoolJournal.TAKE: {
+			PendingTransaction pending = new PendingTransaction();
+			pending.give = type == PoolJournal.GIVE;
+			pending.poolId = record.get();
+			pending.id = record.getLong();
+			pending.balance = record.getLong();
+			pending.addresses = readAddresses(record);
+			maxId = Math.max(maxId, pending.id);
+			pendingTransactions.put(pending.id, pending);
+			if (!pending.give && pending.poolId != PoolJournal.RECEIVING_POOL)
+				pending.addresses.keySet().forEach(k -> contentOf(pending.poolId).remove(k));
+			break;
+		}
+		case PoolJournal.COMMIT:
+		case PoolJournal.ROLLBACK: {
+			PendingTransaction pending = pendingTransactions.remove(record.getLong());
+			if (pending == null)
+				break;
+			// the content of the receiving pool are the extensions of its window, swept addresses are retired
+			if (pending.poolId == PoolJournal.RECEIVING_POOL) {
+				if (type == PoolJournal.COMMIT)
+					pending.addresses.keySet().forEach(k -> contentOf(pending.poolId).remove(k));
+				break;
+			}
+			touched.addAll(pending.addresses.keySet());
+			// addresses return to the pool on commit of a give and rollback of a take
+			if (pending.give == (type == PoolJournal.COMMIT))
+				contentOf(pending.poolId).putAll(pending.addresses);
+			break;
+		}
+		case PoolJournal.SIGNED:
+		case PoolJournal.BUNDLE: {
+			// BUNDLE records (attached bundles without trytes) are written by older versions
+			PendingBundle bundle = new PendingBundle();
+			bundle.id = record.getLong();
+			bundle.refKeyIndex = record.getInt();
+			bundle.refValue = record.getLong();
+			bundle.transactionIds = new long[record.getInt()];
+			for (int i = 0; i < bundle.transactionIds.length; i++)
+				bundle.transactionIds[i] = record.getLong();
+			int count = record.getInt();
+			if (type == PoolJournal.SIGNED)
+				bundle.trytes = new String[count];
+			for (int i = 0; i < count; i++) {
+				byte[] bytes = new byte[record.getShort()];
+				record.get(bytes);
+				if (type == PoolJournal.SIGNED)
+					bundle.trytes[i] = new String(bytes, StandardCharsets.US_ASCII);
+				else
+					bundle.hashes.add(new String(bytes, StandardCharsets.US_ASCII));
+			}
+			maxId = Math.max(maxId, bundle.id);
+			maxKeyIndex = Math.max(maxKeyIndex, bundle.refKeyIndex);
+			pendingBundles.put(bundle.id, bundle);
+			break;
+		}
+		case PoolJournal.TAIL: {
+			PendingBundle bundle = pendingBundles.get(record.getLong());
+			byte[] bytes = new byte[record.getShort()];
+			record.get(bytes);
+			if (bundle != null)
+				bundle.hashes.add(new String(bytes, StandardCharsets.US_ASCII));
+			break;
+		}
+		case PoolJournal.BUNDLE_DONE:
+			pendingBundles.remove(record.getLong());
+			break;
+		default:
+			throw new IllegalStateException("unknown journal record type " + type);
+		}
+	}
+
+	private LinkedHashMap<Integer, Long> readAddresses(ByteBuffer record) {
+		int count = record.getInt();
+		LinkedHashMap<Integer, Long> addresses = new LinkedHashMap<Integer, Long>();
+		for (int i = 0; i < count; i++) {
+			int keyIndex = record.getInt();
+			addresses.put(keyIndex, record.getLong());
+			touched.add(keyIndex);
+			maxKeyIndex = Math.max(maxKeyIndex, keyIndex);
+		}
+		return addresses;
+	}
+
+	/**
+	 * A PoolTransaction neither committed nor rolled back.
+	 */
+	public static class PendingTransaction {
+		public long id;
+		public boolean give;
+		public byte poolId;
+		public long balance;
+		public LinkedHashMap<Integer, Long> addresses;
+	}
+
+	/**
+	 * A TangleTransaction signed but not confirmed.
+	 */
+	public static class PendingBundle {
+		public long id;
+		public int refKeyIndex;
+		public long refValue;
+		public long[] transactionIds;
+		/**
+		 * Tail hashes of all attachments.
+		 */
+		public List<String> hashes = new ArrayList<String>();
+		/**
+		 * The signed trytes, null if journaled by an older version.
+		 */
+		public String[] trytes;
+	}
+}
@@ -0,0 +1,591 @@
+package de.topocare.topocareXiota.iotaMachineWallet.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import de.topocare.topocareXiota.iotaMachineWallet.address.IotaAddress;
+
+/**
+ * Append-only, memory-mapped write-ahead journal of the pools.
+ * <p>
+ * Every give/take of a pool (creation of a PoolTransaction), every commit and
+ * rollback and every signed TangleTransaction is appended as a record. After
+ * a restart the journal is replayed (see JournalReplay) to rebuild pools and
+ * pending confirmations without scanning the tangle.
+ * <p>
+ * Appending only writes to the mapped memory. The mapped file is forced to disk
+ * by a background task every syncIntervalMillis (group commit), so the payment
+ * path never waits for the disk. Only a signed bundle is forced before it is
+ * attached (see recordSigned), its inputs must never be signed again after a
+ * restart. Records are protected by a CRC32, a torn
+ * record at the end of the journal ends the replay.
+ * <p>
+ * After every PoolSnapshot the journal is rotated into a new epoch, keeping
+ * only the records not covered by the snapshot (see rotate), so it never grows
+ * beyond the records of one snapshot interval. A snapshot continues a journal
+ * of the same epoch, or the journal rotated right after it. Without snapshots,
+ * the journal is compacted to the replayed state after a restart (see
+ * compact).
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public class PoolJournal {
+
+	// pool ids used in the records
+	public static final byte RECEIVING_POOL = 0;
+	public static final byte USEABLE_POOL = 1;
+	public static final byte PRODUCTION_POOL = 2;
+	public static final byte PAYMENT_TARGET = 3;
+	public static final byte REFUNDING_TARGET = 4;
+
+	// record types
+	static final byte GIVE = 1;
+	static final byte TAKE = 2;
+	static final byte COMMIT = 3;
+	static final byte ROLLBACK = 4;
+	static final byte BUNDLE = 5;
+	static final byte BUNDLE_DONE = 6;
+	static final byte CONTENT = 7;
+	static final byte EPOCH = 8;
+	static final byte TAIL = 9;
+	static final byte SIGNED = 10;
+	static final byte ROTATED = 11;
+
+	private static final int INITIAL_CAPACITY = 4 * 1024 * 1024;
+	private static final int RECORD_HEADER = 8;
+
+	/**
+	 * Position of the first record after clear(), following the epoch record.
+	 */
+	static final int FIRST_RECORD_POSITION = RECORD_HEADER + 9;
+
+	private static final int ROTATED_LENGTH = 1 + 8 + 4;
+
+	private File file;
+	private FileChannel channel;
+	// replaced by ensureCapacity() while sync() may force it
+	private volatile MappedByteBuffer buffer;
+	private int writePosition = 0;
+	private volatile boolean dirty = false;
+	private final Object syncLock = new Object();
+
+	private long epoch = 0;
+	private AtomicLong idSequence = new AtomicLong(0);
+	private Map<Object, Byte> poolIds = new IdentityHashMap<Object, Byte>();
+
+	private ScheduledExecutorService syncTask;
+
+	/**
+	 * Opens the journal file, creating it if missing. Existing records are kept,
+	 * use replay() before appending.
+	 * 
+	 * @param fileName           path of the journal file
+	 * @param syncIntervalMillis interval of the group commit (force to disk)
+	 * @throws IOException if the file can't be opened
+	 */
+	public PoolJournal(String fileName, int syncIntervalMillis) throws IOException {
+		file = new File(fileName);
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_CAPACITY, channel.size()));
+
+		syncTask = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "PoolJournalSync");
+			t.setDaemon(true);
+			return t;
+		});
+		syncTask.scheduleWithFixedDelay(() -> sync(), syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Reads all valid records of the journal. Following records are appended
+	 * after the last valid one.
+	 * 
+	 * @return the state described by the journal
+	 */
+	public JournalReplay replay() {
+		return replay(null, 0, 0);
+	}
+
+	/**
+	 * Reads the valid records of the journal not covered by a snapshot, applying
+	 * them to the state of the snapshot. Following records are appended after
+	 * the last valid one.
+	 * 
+	 * @param snapshot         state loaded from a snapshot, null if none
+	 * @param snapshotEpoch    epoch of the journal the snapshot continues
+	 * @param snapshotPosition position in that journal covered by the snapshot
+	 * @return the state described by snapshot and journal
+	 */
+	public synchronized JournalReplay replay(JournalReplay snapshot, long snapshotEpoch, int snapshotPosition) {
+		epoch = readEpoch();
+		JournalReplay state;
+		if (snapshot == null) {
+			if (isRotated())
+				System.err.println("PoolJournal " + file + " continues a snapshot of epoch "
+						+ buffer.getLong(FIRST_RECORD_POSITION + RECORD_HEADER + 1)
+						+ " that can't be read, the restored pools may be incomplete");
+			state = new JournalReplay();
+			writePosition = read(state, 0, buffer.capacity(), buffer.duplicate());
+		} else if (epoch == snapshotEpoch) {
+			state = snapshot;
+			writePosition = read(state, snapshotPosition, buffer.capacity(), buffer.duplicate());
+		} else if (isRotated() && buffer.getLong(FIRST_RECORD_POSITION + RECORD_HEADER + 1) == snapshotEpoch
+				&& buffer.getInt(FIRST_RECORD_POSITION + RECORD_HEADER + 9) == snapshotPosition) {
+			// journal rotated after the snapshot, before the next snapshot was written
+			state = snapshot;
+			writePosition = read(state, 0, buffer.capacity(), buffer.duplicate());
+		} else {
+			// journal of an older epoch, all its records are part of the snapshot
+			state = snapshot;
+			writePosition = read(new JournalReplay(), 0, buffer.capacity(), buffer.duplicate());
+			if (epoch > snapshotEpoch)
+				System.err.println("PoolJournal " + file + " is newer than the snapshot, journal ignored");
+			epoch = snapshotEpoch;
+		}
+		idSequence.set(Math.max(idSequence.get(), state.maxId));
+		return state;
+	}
+
+	/**
+	 * Applies the records appended since a position to a state, without
+	 * blocking appends.
+	 * 
+	 * @param state the state to update
+	 * @param from  position of the first record to apply
+	 * @return position after the last applied record
+	 */
+	public int readInto(JournalReplay state, int from) {
+		int to;
+		ByteBuffer view;
+		synchronized (this) {
+			to = writePosition;
+			view = buffer.duplicate();
+		}
+		return read(state, from, to, view);
+	}
+
+	/**
+	 * @return the epoch of the journal, counted up on each clear()
+	 */
+	public synchronized long getEpoch() {
+		return epoch;
+	}
+
+	// true if the journal was started by rotate(), continuing the journal covered by a snapshot
+	private boolean isRotated() {
+		return buffer.getInt(FIRST_RECORD_POSITION) == ROTATED_LENGTH
+				&& buffer.get(FIRST_RECORD_POSITION + RECORD_HEADER) == ROTATED;
+	}
+
+	private long readEpoch() {
+		if (buffer.getInt(0) != 9 || buffer.get(RECORD_HEADER) != EPOCH)
+			return 0;
+		return buffer.getLong(RECORD_HEADER + 1);
+	}
+
+	private static int read(JournalReplay state, int position, int limit, ByteBuffer view) {
+		CRC32 crc = new CRC32();
+		while (position + RECORD_HEADER <= limit) {
+			int length = view.getInt(position);
+			if (length <= 0 || position + RECORD_HEADER + length > limit)
+				break;
+			byte[] payload = new byte[length];
+			view.position(position + RECORD_HEADER);
+			view.get(payload);
+			crc.reset();
+			crc.update(payload);
+			if ((int) crc.getValue() != view.getInt(position + 4))
+				break;
+
+			state.apply(ByteBuffer.wrap(payload));
+			position += RECORD_HEADER + length;
+		}
+		return position;
+	}
+
+	/**
+	 * Drops all records, the journal starts empty with a new epoch. Used if the
+	 * wallet is not restored from the journal or all records are part of a
+	 * snapshot.
+	 * 
+	 * @param newEpoch the epoch of the empty journal
+	 */
+	public synchronized void clear(long newEpoch) {
+		byte[] zeros = new byte[64 * 1024];
+		ByteBuffer view = buffer.duplicate();
+		view.position(0);
+		while (view.hasRemaining())
+			view.put(zeros, 0, Math.min(zeros.length, view.remaining()));
+		writePosition = 0;
+		epoch = newEpoch;
+		append(ByteBuffer.allocate(9).put(EPOCH).putLong(newEpoch));
+		buffer.force();
+		dirty = false;
+	}
+
+	/**
+	 * Replaces all records by the records describing a replayed state, in a new
+	 * epoch: the content of the pools, the open PoolTransactions and the bundles
+	 * waiting for confirmation. The compacted journal is written to a new file
+	 * replacing the journal atomically, a crash keeps the old journal.
+	 * 
+	 * @param state    the state of the journal, see replay()
+	 * @param newEpoch the epoch of the compacted journal
+	 * @throws IOException if the compacted journal can't be written, the journal
+	 *                     is kept unchanged
+	 */
+	public synchronized void compact(JournalReplay state, long newEpoch) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileChannel oldChannel = channel;
+		MappedByteBuffer oldBuffer = buffer;
+		int oldWritePosition = writePosition;
+		long oldEpoch = epoch;
+		try {
+			channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_CAPACITY);
+			writePosition = 0;
+			epoch = newEpoch;
+			append(ByteBuffer.allocate(9).put(EPOCH).putLong(newEpoch));
+			appendState(state);
+			buffer.force();
+			replaceFile(temp);
+		} catch (IOException | RuntimeException e) {
+			if (channel != oldChannel)
+				channel.close();
+			temp.delete();
+			channel = oldChannel;
+			buffer = oldBuffer;
+			writePosition = oldWritePosition;
+			epoch = oldEpoch;
+			throw e;
+		}
+		oldChannel.close();
+		dirty = false;
+	}
+
+	/**
+	 * Starts a new epoch after a PoolSnapshot covering the records up to a
+	 * position was written. The records following that position are copied to a
+	 * new file, which replaces the journal atomically. Appends are blocked only
+	 * while the records appended during the copy are added.
+	 * <p>
+	 * The new journal starts with a record naming the epoch and position it
+	 * continues, so a crash before the next snapshot still replays it on top of
+	 * the old snapshot.
+	 * 
+	 * @param newEpoch the epoch of the new journal
+	 * @param from     position up to which the records are covered by the
+	 *                 snapshot
+	 * @return the position in the new journal corresponding to from
+	 * @throws IOException if the new journal can't be written, the journal is
+	 *                     kept unchanged
+	 */
+	public int rotate(long newEpoch, int from) throws IOException {
+		int mark;
+		long oldEpoch;
+		ByteBuffer view;
+		synchronized (this) {
+			mark = writePosition;
+			oldEpoch = epoch;
+			view = buffer.duplicate();
+		}
+
+		File temp = new File(file.getPath() + ".tmp");
+		FileChannel newChannel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		boolean replaced = false;
+		try {
+			MappedByteBuffer newBuffer = newChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+					Math.max(INITIAL_CAPACITY, 2L * (mark - from)));
+			int position = putRecord(newBuffer, 0, ByteBuffer.allocate(9).put(EPOCH).putLong(newEpoch).array());
+			position = putRecord(newBuffer, position,
+					ByteBuffer.allocate(ROTATED_LENGTH).put(ROTATED).putLong(oldEpoch).putInt(from).array());
+			int start = position;
+			position = copy(view, from, mark, newBuffer, position);
+			newBuffer.force();
+
+			synchronized (this) {
+				if (epoch != oldEpoch)
+					throw new IOException("journal " + file + " was cleared during the rotation");
+				int needed = position + (writePosition - mark) + RECORD_HEADER;
+				if (needed > newBuffer.capacity())
+					newBuffer = newChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+							Math.max(2L * newBuffer.capacity(), needed));
+				position = copy(buffer.duplicate(), mark, writePosition, newBuffer, position);
+				newBuffer.force();
+				replaceFile(temp);
+				replaced = true;
+
+				FileChannel oldChannel = channel;
+				channel = newChannel;
+				buffer = newBuffer;
+				writePosition = position;
+				epoch = newEpoch;
+				dirty = false;
+				oldChannel.close();
+			}
+			return start;
+		} finally {
+			if (!replaced) {
+				newChannel.close();
+				temp.delete();
+			}
+		}
+	}
+
+	// copies the records between from and to, the byte behind them terminates the journal
+	private static int copy(ByteBuffer source, int from, int to, ByteBuffer target, int position) {
+		source.limit(to).position(from);
+		ByteBuffer view = target.duplicate();
+		view.position(position);
+		view.put(source);
+		view.putInt(0);
+		return position + to - from;
+	}
+
+	// appends the records rebuilding the state on replay
+	private void appendState(JournalReplay state) {
+		// all pools, also if empty, so the compacted journal is never taken as missing
+		for (byte poolId : new byte[] { RECEIVING_POOL, USEABLE_POOL, PRODUCTION_POOL })
+			state.contentOf(poolId);
+		for (Map.Entry<Byte, LinkedHashMap<Integer, Long>> pool : state.content.entrySet()) {
+			ByteBuffer payload = ByteBuffer.allocate(1 + 1 + 4 + pool.getValue().size() * 12);
+			payload.put(CONTENT).put(pool.getKey());
+			putAddresses(payload, pool.getValue());
+			append(payload);
+		}
+		for (JournalReplay.PendingTransaction p : state.pendingTransactions.values()) {
+			ByteBuffer payload = ByteBuffer.allocate(1 + 1 + 8 + 8 + 4 + p.addresses.size() * 12);
+			payload.put(p.give ? GIVE : TAKE).put(p.poolId).putLong(p.id).putLong(p.balance);
+			putAddresses(payload, p.addresses);
+			append(payload);
+		}
+		for (JournalReplay.PendingBundle b : state.pendingBundles.values()) {
+			// bundles journaled without trytes keep their tails in a BUNDLE record
+			if (b.trytes == null) {
+				append(bundlePayload(BUNDLE, b.id, b.refKeyIndex, b.refValue, b.transactionIds,
+						b.hashes.toArray(new String[b.hashes.size()])));
+				continue;
+			}
+			append(bundlePayload(SIGNED, b.id, b.refKeyIndex, b.refValue, b.transactionIds, b.trytes));
+			for (String hash : b.hashes)
+				recordTail(b.id, hash);
+		}
+	}
+
+	// moves the temp file over the journal file, durable once the directory is forced
+	private void replaceFile(File temp) throws IOException {
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		File directory = file.getAbsoluteFile().getParentFile();
+		try (FileChannel dir = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			dir.force(true);
+		} catch (IOException e) {
+			// not supported on every platform, the rename is durable with the next sync of the file system
+		}
+	}
+
+	/**
+	 * Registers a pool or UnmanagedTransactionTarget, only registered objects are
+	 * journaled.
+	 */
+	public synchronized void registerPool(Object pool, byte poolId) {
+		poolIds.put(pool, poolId);
+	}
+
+	/**
+	 * @return a new id for a PoolTransaction or TangleTransaction
+	 */
+	public long nextId() {
+		return idSequence.incrementAndGet();
+	}
+
+	/**
+	 * Records addresses being part of a pool without a transaction (initial
+	 * content).
+	 */
+	public void recordContent(Object pool, List<IotaAddress> addresses) {
+		Byte poolId = poolId(pool);
+		if (poolId == null)
+			return;
+		ByteBuffer payload = ByteBuffer.allocate(1 + 1 + 4 + addresses.size() * 12);
+		payload.put(CONTENT).put(poolId);
+		putAddresses(payload, addresses);
+		append(payload);
+	}
+
+	/**
+	 * Records a PoolTransaction giving addresses (or only balance, for unmanaged
+	 * targets) to a pool.
+	 */
+	public void recordGive(Object pool, long transactionId, long balance, List<IotaAddress> addresses) {
+		recordChange(GIVE, pool, transactionId, balance, addresses);
+	}
+
+	/**
+	 * Records a PoolTransaction taking addresses from a pool.
+	 */
+	public void recordTake(Object pool, long transactionId, long balance, List<IotaAddress> addresses) {
+		recordChange(TAKE, pool, transactionId, balance, addresses);
+	}
+
+	public void recordCommit(long transactionId) {
+		append(ByteBuffer.allocate(9).put(COMMIT).putLong(transactionId));
+	}
+
+	public void recordRollback(long transactionId) {
+		append(ByteBuffer.allocate(9).put(ROLLBACK).putLong(transactionId));
+	}
+
+	/**
+	 * Records a signed TangleTransaction with its trytes and forces it to disk
+	 * before returning. Called before the bundle is attached, so the inputs of a
+	 * bundle that may have left the wallet are never signed again after a
+	 * restart, the bundle is reattached from its trytes instead.
+	 * 
+	 * @param bundleId       id of the TangleTransaction
+	 * @param refKeyIndex    keyIndex of the address used for confirmation, -1 if
+	 *                       none
+	 * @param refValue       expected balance of that address
+	 * @param transactionIds ids of all PoolTransactions of the bundle
+	 * @param trytes         the signed trytes of the bundle
+	 */
+	public void recordSigned(long bundleId, int refKeyIndex, long refValue, long[] transactionIds, String[] trytes) {
+		append(bundlePayload(SIGNED, bundleId, refKeyIndex, refValue, transactionIds, trytes));
+		sync();
+	}
+
+	// SIGNED record with trytes, or BUNDLE record with tail hashes
+	private static ByteBuffer bundlePayload(byte type, long bundleId, int refKeyIndex, long refValue,
+			long[] transactionIds, String[] strings) {
+		int size = 1 + 8 + 4 + 8 + 4 + transactionIds.length * 8 + 4;
+		for (String t : strings)
+			size += 2 + t.length();
+		ByteBuffer payload = ByteBuffer.allocate(size);
+		payload.put(type).putLong(bundleId).putInt(refKeyIndex).putLong(refValue);
+		payload.putInt(transactionIds.length);
+		for (long id : transactionIds)
+			payload.putLong(id);
+		payload.putInt(strings.length);
+		for (String t : strings) {
+			byte[] bytes = t.getBytes(StandardCharsets.US_ASCII);
+			payload.putShort((short) bytes.length).put(bytes);
+		}
+		return payload;
+	}
+
+	/**
+	 * Records the tail hash of a reattachment of a TangleTransaction.
+	 */
+	public void recordTail(long bundleId, String tailHash) {
+		byte[] bytes = tailHash.getBytes(StandardCharsets.US_ASCII);
+		append(ByteBuffer.allocate(1 + 8 + 2 + bytes.length).put(TAIL).putLong(bundleId).putShort((short) bytes.length)
+				.put(bytes));
+	}
+
+	public void recordBundleDone(long bundleId) {
+		append(ByteBuffer.allocate(9).put(BUNDLE_DONE).putLong(bundleId));
+	}
+
+	/**
+	 * Forces all appended records to disk now. Returns only after every record
+	 * appended before the call is on disk, also if a concurrent sync is running.
+	 */
+	public void sync() {
+		synchronized (syncLock) {
+			if (dirty) {
+				dirty = false;
+				buffer.force();
+			}
+		}
+	}
+
+	/**
+	 * @return current size of the journal in bytes
+	 */
+	public synchronized int getSize() {
+		return writePosition;
+	}
+
+	private void recordChange(byte type, Object pool, long transactionId, long balance, List<IotaAddress> addresses) {
+		Byte poolId = poolId(pool);
+		if (poolId == null)
+			return;
+		ByteBuffer payload = ByteBuffer.allocate(1 + 1 + 8 + 8 + 4 + addresses.size() * 12);
+		payload.put(type).put(poolId).putLong(transactionId).putLong(balance);
+		putAddresses(payload, addresses);
+		append(payload);
+	}
+
+	private static void putAddresses(ByteBuffer payload, List<IotaAddress> addresses) {
+		payload.putInt(addresses.size());
+		for (IotaAddress address : addresses)
+			payload.putInt(address.getKeyIndex()).putLong(address.getBalance());
+	}
+
+	private static void putAddresses(ByteBuffer payload, Map<Integer, Long> addresses) {
+		payload.putInt(addresses.size());
+		for (Map.Entry<Integer, Long> address : addresses.entrySet())
+			payload.putInt(address.getKey()).putLong(address.getValue());
+	}
+
+	private synchronized Byte poolId(Object pool) {
+		return poolIds.get(pool);
+	}
+
+	private synchronized void append(ByteBuffer payload) {
+		byte[] bytes = payload.array();
+		ensureCapacity(RECORD_HEADER + bytes.length + RECORD_HEADER);
+		writePosition = putRecord(buffer, writePosition, bytes);
+		dirty = true;
+	}
+
+	// writes a record at position, returns the position behind it
+	private static int putRecord(ByteBuffer target, int position, byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+
+		ByteBuffer view = target.duplicate();
+		view.position(position + RECORD_HEADER);
+		view.put(bytes);
+		target.putInt(position + 4, (int) crc.getValue());
+		// terminate the journal behind this record, then length last, the record is valid only when complete
+		target.putInt(position + RECORD_HEADER + bytes.length, 0);
+		target.putInt(position, bytes.length);
+		return position + RECORD_HEADER + bytes.length;
+	}
+
+	private void ensureCapacity(int needed) {
+		if (writePosition + needed <= buffer.capacity())
+			return;
+		// a mapping is limited to Integer.MAX_VALUE bytes, rotate() keeps the journal far below
+		if ((long) writePosition + needed > Integer.MAX_VALUE)
+			throw new RuntimeException("journal " + file + " is full, no snapshot rotated it");
+		try {
+			buffer.force();
+			long newCapacity = Math.min(Integer.MAX_VALUE,
+					Math.max((long) buffer.capacity() * 2, writePosition + needed));
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+		} catch (IOException e) {
+			throw new RuntimeException("journal " + file + " can't grow", e);
+		}
+	}
+}
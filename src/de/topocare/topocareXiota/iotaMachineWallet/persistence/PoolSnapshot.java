@@ -0,0 +1,282 @@
+package de.topocare.topocareXiota.iotaMachineWallet.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact binary snapshot of the state described by a PoolJournal (pool
+ * contents, open PoolTransactions and bundles waiting for confirmation).
+ * <p>
+ * The snapshot is taken in the background: a daemon task applies the records
+ * appended to the journal since the last snapshot to its own copy of the state
+ * and writes it to a temporary file, which replaces the snapshot file
+ * atomically. Appends to the journal are never blocked, the payment path is not
+ * affected.
+ * <p>
+ * After each snapshot the journal is rotated into a new epoch holding only the
+ * records following the snapshot, so neither the journal nor the replay grows
+ * with the runtime of the wallet.
+ * <p>
+ * On startup restore() loads the snapshot and replays only the journal records
+ * following it. The restored state is written as a new snapshot and the
+ * journal is cleared, so the restart time depends on the size of the state,
+ * not on the history of the wallet.
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public class PoolSnapshot {
+
+	private static final int MAGIC = 0x57534e50;
+	// version 2 adds the signed trytes of pending bundles, version 1 is still read
+	private static final int VERSION = 2;
+
+	private File file;
+	private PoolJournal journal;
+
+	// state covered by the snapshot, position in the journal of that epoch
+	private JournalReplay state;
+	private long epoch;
+	private int position;
+
+	private ScheduledExecutorService snapshotTask;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param fileName path of the snapshot file
+	 * @param journal  the journal continued by the snapshot
+	 */
+	public PoolSnapshot(String fileName, PoolJournal journal) {
+		this.file = new File(fileName);
+		this.journal = journal;
+	}
+
+	/**
+	 * Restores the state from the snapshot and the following journal records,
+	 * then writes it as a new snapshot and clears the journal.
+	 *
+	 * @return the restored state, empty if neither snapshot nor journal exist
+	 * @throws IOException if the new snapshot can't be written
+	 */
+	public synchronized JournalReplay restore() throws IOException {
+		long snapshotEpoch = 0;
+		int snapshotPosition = 0;
+		JournalReplay snapshot = null;
+		if (file.exists()) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				snapshot = new JournalReplay();
+				snapshotEpoch = in.readLong();
+				snapshotPosition = in.readInt();
+				readState(in, snapshot);
+			} catch (IOException e) {
+				System.err.println("PoolSnapshot " + file + " not readable, using journal only: " + e.getMessage());
+				snapshot = null;
+			}
+		}
+
+		state = journal.replay(snapshot, snapshotEpoch, snapshotPosition);
+		if (state.isEmpty()) {
+			epoch = journal.getEpoch();
+			position = 0;
+			return state;
+		}
+
+		epoch = journal.getEpoch() + 1;
+		position = PoolJournal.FIRST_RECORD_POSITION;
+		write();
+		journal.clear(epoch);
+		return state;
+	}
+
+	/**
+	 * Drops snapshot and journal, used if the wallet is not restored.
+	 */
+	public synchronized void reset() {
+		file.delete();
+		epoch = journal.getEpoch() + 1;
+		journal.clear(epoch);
+		state = new JournalReplay();
+		position = journal.getSize();
+	}
+
+	/**
+	 * Starts the background task taking a snapshot every intervalSeconds, if
+	 * records were appended since the last one.
+	 */
+	public synchronized void start(int intervalSeconds) {
+		if (state == null)
+			reset();
+		snapshotTask = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "PoolSnapshot");
+			t.setDaemon(true);
+			return t;
+		});
+		snapshotTask.scheduleWithFixedDelay(() -> {
+			try {
+				takeSnapshot();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Applies the journal records appended since the last snapshot, writes a
+	 * new snapshot and rotates the journal.
+	 */
+	public synchronized void takeSnapshot() throws IOException {
+		// the journal was rotated only by this snapshot since restore()/reset(), positions are comparable
+		int end = journal.readInto(state, position);
+		if (end == position)
+			return;
+		position = end;
+		write();
+
+		// the records up to position are on disk in the snapshot, the journal keeps only the following ones
+		position = journal.rotate(epoch + 1, position);
+		epoch++;
+	}
+
+	private void write() throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream fileOut = new FileOutputStream(temp)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+			out.writeLong(epoch);
+			out.writeInt(position);
+			writeState(out, state);
+			out.flush();
+			fileOut.getFD().sync();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void writeState(DataOutputStream target, JournalReplay state) throws IOException {
+		CheckedOutputStream checked = new CheckedOutputStream(target, new CRC32());
+		DataOutputStream out = new DataOutputStream(checked);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(state.records);
+		out.writeLong(state.maxId);
+		out.writeInt(state.maxKeyIndex);
+
+		out.writeInt(state.content.size());
+		for (Map.Entry<Byte, LinkedHashMap<Integer, Long>> pool : state.content.entrySet()) {
+			out.writeByte(pool.getKey());
+			writeAddresses(out, pool.getValue());
+		}
+
+		out.writeInt(state.pendingTransactions.size());
+		for (JournalReplay.PendingTransaction p : state.pendingTransactions.values()) {
+			out.writeLong(p.id);
+			out.writeBoolean(p.give);
+			out.writeByte(p.poolId);
+			out.writeLong(p.balance);
+			writeAddresses(out, p.addresses);
+		}
+
+		out.writeInt(state.pendingBundles.size());
+		for (JournalReplay.PendingBundle b : state.pendingBundles.values()) {
+			out.writeLong(b.id);
+			out.writeInt(b.refKeyIndex);
+			out.writeLong(b.refValue);
+			out.writeInt(b.transactionIds.length);
+			for (long id : b.transactionIds)
+				out.writeLong(id);
+			out.writeInt(b.hashes.size());
+			for (String hash : b.hashes)
+				out.writeUTF(hash);
+			out.writeInt(b.trytes != null ? b.trytes.length : -1);
+			if (b.trytes != null)
+				for (String t : b.trytes)
+					out.writeUTF(t);
+		}
+		out.flush();
+		target.writeLong(checked.getChecksum().getValue());
+	}
+
+	private static void readState(DataInputStream source, JournalReplay state) throws IOException {
+		CheckedInputStream checked = new CheckedInputStream(source, new CRC32());
+		DataInputStream in = new DataInputStream(checked);
+		if (in.readInt() != MAGIC)
+			throw new IOException("unknown format");
+		int version = in.readInt();
+		if (version < 1 || version > VERSION)
+			throw new IOException("unknown format");
+		state.records = in.readInt();
+		state.maxId = in.readLong();
+		state.maxKeyIndex = in.readInt();
+
+		int pools = in.readInt();
+		for (int i = 0; i < pools; i++)
+			state.contentOf(in.readByte()).putAll(readAddresses(in));
+
+		int pending = in.readInt();
+		for (int i = 0; i < pending; i++) {
+			JournalReplay.PendingTransaction p = new JournalReplay.PendingTransaction();
+			p.id = in.readLong();
+			p.give = in.readBoolean();
+			p.poolId = in.readByte();
+			p.balance = in.readLong();
+			p.addresses = readAddresses(in);
+			state.pendingTransactions.put(p.id, p);
+		}
+
+		int bundles = in.readInt();
+		for (int i = 0; i < bundles; i++) {
+			JournalReplay.PendingBundle b = new JournalReplay.PendingBundle();
+			b.id = in.readLong();
+			b.refKeyIndex = in.readInt();
+			b.refValue = in.readLong();
+			b.transactionIds = new long[in.readInt()];
+			for (int j = 0; j < b.transactionIds.length; j++)
+				b.transactionIds[j] = in.readLong();
+			int hashes = in.readInt();
+			for (int j = 0; j < hashes; j++)
+				b.hashes.add(in.readUTF());
+			int trytes = version >= 2 ? in.readInt() : -1;
+			if (trytes >= 0) {
+				b.trytes = new String[trytes];
+				for (int j = 0; j < trytes; j++)
+					b.trytes[j] = in.readUTF();
+			}
+			state.pendingBundles.put(b.id, b);
+		}
+
+		long checksum = checked.getChecksum().getValue();
+		if (source.readLong() != checksum)
+			throw new IOException("checksum mismatch");
+	}
+
+	private static void writeAddresses(DataOutputStream out, Map<Integer, Long> addresses) throws IOException {
+		out.writeInt(addresses.size());
+		for (Map.Entry<Integer, Long> address : addresses.entrySet()) {
+			out.writeInt(address.getKey());
+			out.writeLong(address.getValue());
+		}
+	}
+
+	private static LinkedHashMap<Integer, Long> readAddresses(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		LinkedHashMap<Integer, Long> addresses = new LinkedHashMap<Integer, Long>();
+		for (int i = 0; i < count; i++)
+			addresses.put(in.readInt(), in.readLong());
+		return addresses;
+	}
+}
@@ -1,5 +1,7 @@
 package de.topocare.topocareXiota.iotaMachineWallet.poolTransactions;
 
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.journal;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -23,6 +25,7 @@ public class PoolTransaction implements PoolTransactionInput, PoolTransactionTra
 	private TransactionInputSource source;
 	private IotaAddressPool target;
 	private boolean managed;
+	private long journalId = 0;
 	
 
 	/** Constructor, based on existing list of IotaAddresses. Used by the take-methods of pools.
@@ -40,6 +43,11 @@ public class PoolTransaction implements PoolTransactionInput, PoolTransactionTra
 		this.managed = managed;
 		
 		addressCount = iotaAddresses.size();
+		
+		if (journal != null) {
+			journalId = journal.nextId();
+			journal.recordTake(source, journalId, balance, this.iotaAddresses);
+		}
 	}
 	
 	/** Constructor, creating a new pool of addresses. Used by the give-methods of pools.
@@ -58,6 +66,31 @@ public class PoolTransaction implements PoolTransactionInput, PoolTransactionTra
 		this.target = target;
 		this.managed = managed;
 		this.addressCount = addressCount;
+		
+		if (journal != null) {
+			journalId = journal.nextId();
+			journal.recordGive(target, journalId, balance, iotaAddresses);
+		}
+	}
+	
+	/** Constructor, restoring a PoolTransaction from the PoolJournal. Not journaled again.
+	 * 
+	 * @param journalId The id of the PoolTransaction in the journal.
+	 * @param iotaAddresses The IotaAddresses included in the PoolTransaction.
+	 * @param balance The total balance of the PoolTransaction.
+	 * @param source The TransactionInputSource if taken from a pool, else null.
+	 * @param target The IotaAddressPool if given to a pool, else null.
+	 * @param managed true if the addresses can be used to confirm transactions on the tangle (only known/used by the wallet), else false
+	 */
+	public PoolTransaction(long journalId, List<IotaAddress> iotaAddresses, long balance, TransactionInputSource source, IotaAddressPool target, boolean managed)
+	{
+		this.journalId = journalId;
+		this.iotaAddresses = new ArrayList<IotaAddress>(iotaAddresses);
+		this.balance = balance;
+		this.source = source;
+		this.target = target;
+		this.managed = managed;
+		this.addressCount = iotaAddresses.size();
 	}
 	
 
@@ -67,6 +100,9 @@ public class PoolTransaction implements PoolTransactionInput, PoolTransactionTra
 	@Override
 	public void commit()
 	{
+		if (journal != null && journalId != 0)
+			journal.recordCommit(journalId);
+		
 		if (source != null)
 			source.commitTake(this);
 		
@@ -81,6 +117,9 @@ public class PoolTransaction implements PoolTransactionInput, PoolTransactionTra
 	@Override
 	public void rollback()
 	{
+		if (journal != null && journalId != 0)
+			journal.recordRollback(journalId);
+		
 		if (source != null)
 			source.rollbackTake(this);
 		
@@ -130,6 +169,11 @@ public class PoolTransaction implements PoolTransactionInput, PoolTransactionTra
 		else
 			return null;
 	}
+
+	@Override
+	public long getJournalId()
+	{
+		return journalId;
+	}
 	
 }
-
@@ -22,4 +22,9 @@ public interface PoolTransactionBase {
 	 */
 	IotaAddress getManagedAddress();
 
+	/**
+	 * Id of this object in the PoolJournal (IotaConfig), 0 if not journaled.
+	 */
+	long getJournalId();
+
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package de.topocare.topocareXiota.iotaMachineWallet.poolTransactions;
 
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.journal;
+
 import java.util.Collections;
 import java.util.List;
 
@@ -19,12 +21,15 @@ public class PoolTransactionUnmanagedOutput implements PoolTransactionTransfer {
 	private UnmanagedTransactionTarget target;
 	private long balance;
 	private String address;
+	private long journalId = 0;
 
 	@Override
 	/**
 	 * Commits this PoolTransaction on the providing pool.
 	 */
 	public void commit() {
+		if (journal != null && journalId != 0)
+			journal.recordCommit(journalId);
 		target.commit(this);
 	}
 
@@ -33,6 +38,8 @@ public class PoolTransactionUnmanagedOutput implements PoolTransactionTransfer {
 	 * Rolls back this PoolTransaction on the providing pool.
 	 */
 	public void rollback() {
+		if (journal != null && journalId != 0)
+			journal.recordRollback(journalId);
 		// same as commit, simply removes expected balance
 		target.commit(this);
 	}
@@ -41,6 +48,23 @@ public class PoolTransactionUnmanagedOutput implements PoolTransactionTransfer {
 		this.target = target;
 		this.balance = balance;
 		this.address = address;
+
+		if (journal != null) {
+			journalId = journal.nextId();
+			journal.recordGive(target, journalId, balance, Collections.emptyList());
+		}
+	}
+
+	/**
+	 * Constructor, restoring a PoolTransactionUnmanagedOutput from the PoolJournal.
+	 * Not journaled again.
+	 */
+	public PoolTransactionUnmanagedOutput(long journalId, UnmanagedTransactionTarget target, long balance,
+			String address) {
+		this.journalId = journalId;
+		this.target = target;
+		this.balance = balance;
+		this.address = address;
 	}
 
 	/**
@@ -83,4 +107,9 @@ public class PoolTransactionUnmanagedOutput implements PoolTransactionTransfer {
 		return null;
 	}
 
+	@Override
+	public long getJournalId() {
+		return journalId;
+	}
+
 }
@@ -0,0 +1,115 @@
+package de.topocare.topocareXiota.iotaMachineWallet.pools;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import de.topocare.topocareXiota.iotaMachineWallet.address.IotaAddress;
+
+/**
+ * IotaAddress(es) of a pool, sorted by balance. Used by CoinSelection to find
+ * fitting inputs without walking the whole pool.
+ * <p>
+ * The balance of an address is read when it is added, changing the balance of
+ * an indexed address requires remove and add.
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public class BalanceIndex {
+
+	private TreeMap<Long, LinkedHashSet<IotaAddress>> byBalance = new TreeMap<Long, LinkedHashSet<IotaAddress>>();
+	private Map<IotaAddress, Long> indexedBalance = new IdentityHashMap<IotaAddress, Long>();
+	private long totalBalance = 0;
+
+	public BalanceIndex() {
+
+	}
+
+	public BalanceIndex(Collection<IotaAddress> addresses) {
+		addAll(addresses);
+	}
+
+	public void add(IotaAddress address) {
+		if (indexedBalance.containsKey(address))
+			return;
+		long balance = address.getBalance();
+		indexedBalance.put(address, balance);
+		byBalance.computeIfAbsent(balance, b -> new LinkedHashSet<IotaAddress>()).add(address);
+		totalBalance += balance;
+	}
+
+	public void addAll(Collection<IotaAddress> addresses) {
+		addresses.forEach(e -> add(e));
+	}
+
+	/**
+	 * Removes the address, ignored if not indexed.
+	 */
+	public void remove(IotaAddress address) {
+		Long balance = indexedBalance.remove(address);
+		if (balance == null)
+			return;
+		LinkedHashSet<IotaAddress> sameBalance = byBalance.get(balance);
+		sameBalance.remove(address);
+		if (sameBalance.isEmpty())
+			byBalance.remove(balance);
+		totalBalance -= balance;
+	}
+
+	public void removeAll(Collection<IotaAddress> addresses) {
+		addresses.forEach(e -> remove(e));
+	}
+
+	public void clear() {
+		byBalance.clear();
+		indexedBalance.clear();
+		totalBalance = 0;
+	}
+
+	/**
+	 * @return an address with exactly the given balance, or null
+	 */
+	public IotaAddress exact(long balance) {
+		LinkedHashSet<IotaAddress> sameBalance = byBalance.get(balance);
+		return sameBalance == null ? null : sameBalance.iterator().next();
+	}
+
+	/**
+	 * @return the address with the smallest balance of at least the given
+	 *         balance, or null
+	 */
+	public IotaAddress ceiling(long balance) {
+		Map.Entry<Long, LinkedHashSet<IotaAddress>> entry = byBalance.ceilingEntry(balance);
+		return entry == null ? null : entry.getValue().iterator().next();
+	}
+
+	/**
+	 * @return the address with the highest balance, or null if empty
+	 */
+	public IotaAddress largest() {
+		return byBalance.isEmpty() ? null : byBalance.lastEntry().getValue().iterator().next();
+	}
+
+	/**
+	 * @return all addresses, ordered from smallest to highest balance
+	 */
+	public List<IotaAddress> ascending() {
+		List<IotaAddress> result = new ArrayList<IotaAddress>(indexedBalance.size());
+		for (Iterator<LinkedHashSet<IotaAddress>> i = byBalance.values().iterator(); i.hasNext();)
+			result.addAll(i.next());
+		return result;
+	}
+
+	public long getTotalBalance() {
+		return totalBalance;
+	}
+
+	public int size() {
+		return indexedBalance.size();
+	}
+}
@@ -0,0 +1,117 @@
+package de.topocare.topocareXiota.iotaMachineWallet.pools;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.topocare.topocareXiota.iotaMachineWallet.address.IotaAddress;
+
+/**
+ * Strategies choosing the input addresses for a requested balance from a
+ * BalanceIndex.
+ * <p>
+ * Each input adds signature fragments to the bundle (and so proof of work),
+ * each remainder needs an additional output. The strategies weigh these
+ * differently.
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public enum CoinSelection {
+
+	/**
+	 * Prefers one or two addresses matching the balance exactly (no remainder),
+	 * otherwise minimumInputs.
+	 */
+	exactMatch {
+		@Override
+		public List<IotaAddress> select(BalanceIndex index, long balance) {
+			IotaAddress single = index.exact(balance);
+			if (single != null)
+				return listOf(single);
+
+			for (IotaAddress first : index.ascending()) {
+				if (first.getBalance() * 2 > balance)
+					break;
+				long missing = balance - first.getBalance();
+				IotaAddress second = index.exact(missing);
+				if (second != null && second != first)
+					return listOf(first, second);
+				// both with same balance, needs another address of that balance
+				if (second == first) {
+					index.remove(first);
+					second = index.exact(missing);
+					index.add(first);
+					if (second != null)
+						return listOf(first, second);
+				}
+			}
+			return minimumInputs.select(index, balance);
+		}
+	},
+
+	/**
+	 * Uses as few addresses as possible: the smallest address covering the
+	 * (remaining) balance, else the largest address and continues with the rest.
+	 */
+	minimumInputs {
+		@Override
+		public List<IotaAddress> select(BalanceIndex index, long balance) {
+			if (index.getTotalBalance() < balance)
+				return null;
+
+			List<IotaAddress> result = new ArrayList<IotaAddress>();
+			long missing = balance;
+			try {
+				while (missing > 0) {
+					IotaAddress next = index.ceiling(missing);
+					if (next == null)
+						next = index.largest();
+					result.add(next);
+					index.remove(next);
+					missing -= next.getBalance();
+				}
+			} finally {
+				index.addAll(result);
+			}
+			return result;
+		}
+	},
+
+	/**
+	 * Uses the addresses with the smallest balances first, consolidating dust into
+	 * one remainder.
+	 */
+	dustConsolidation {
+		@Override
+		public List<IotaAddress> select(BalanceIndex index, long balance) {
+			if (index.getTotalBalance() < balance)
+				return null;
+
+			List<IotaAddress> result = new ArrayList<IotaAddress>();
+			long sum = 0;
+			for (IotaAddress address : index.ascending()) {
+				if (sum >= balance)
+					break;
+				result.add(address);
+				sum += address.getBalance();
+			}
+			return result;
+		}
+	};
+
+	/**
+	 * Chooses addresses with a combined balance of at least the requested one.
+	 * The index is not changed.
+	 * 
+	 * @param index   addresses available
+	 * @param balance requested balance
+	 * @return chosen addresses, or null if the index has not enough balance
+	 */
+	public abstract List<IotaAddress> select(BalanceIndex index, long balance);
+
+	private static List<IotaAddress> listOf(IotaAddress... addresses) {
+		List<IotaAddress> result = new ArrayList<IotaAddress>(addresses.length);
+		for (IotaAddress a : addresses)
+			result.add(a);
+		return result;
+	}
+}
@@ -1,10 +1,10 @@
 package de.topocare.topocareXiota.iotaMachineWallet.pools;
 
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.coinSelection;
 import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.productionUnitSize;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.ListIterator;
 
 import de.topocare.topocareXiota.iotaMachineWallet.address.IotaAddress;
 import de.topocare.topocareXiota.iotaMachineWallet.address.IotaFreeAddressFactory;
@@ -28,6 +28,7 @@ import de.topocare.topocareXiota.iotaMachineWallet.poolTransactions.PoolTransact
 public class IotaAddressPool implements TransactionInputSource {
 
 	protected List<IotaAddress> poolList = new ArrayList<IotaAddress>();
+	protected BalanceIndex index = new BalanceIndex();
 	protected PoolMetaData pool = new PoolMetaData();
 	protected PoolMetaData incoming = new PoolMetaData();
 	protected PoolMetaData outgoing = new PoolMetaData();
@@ -88,6 +89,7 @@ public class IotaAddressPool implements TransactionInputSource {
 	{
 		this.iotaFreeAddressFactory = iotaFreeAddressFactory;
 		this.poolList = new ArrayList<IotaAddress>(addressesInPool);
+		this.index = new BalanceIndex(poolList);
 		this.pool = new PoolMetaData(poolList.stream().mapToLong(e -> e.getBalance()).sum(), poolList.size());
 		this.incoming = new PoolMetaData(incomingBalance, incomingAddresses);
 		this.outgoing = new PoolMetaData(outgoingBalance, outgoingAddresses);
@@ -105,6 +107,7 @@ public class IotaAddressPool implements TransactionInputSource {
 
 		// add to pool
 		poolList.addAll(poolTransaction.iotaAddresses);
+		index.addAll(poolTransaction.iotaAddresses);
 		pool.add(poolTransaction);
 	}
 
@@ -117,6 +120,30 @@ public class IotaAddressPool implements TransactionInputSource {
 		incoming.remove(poolTransaction);
 	}
 
+	/** Restores a PoolTransaction giving addresses to this pool from the PoolJournal, adding it to the incoming values.
+	 * 
+	 * @param poolTransaction The restored PoolTransaction.
+	 */
+	public synchronized void giveRecovered(PoolTransaction poolTransaction) {
+		incoming.add(poolTransaction);
+	}
+
+	/** Restores a PoolTransaction taking addresses from this pool from the PoolJournal, adding it to the outgoing values.
+	 * The addresses are not part of the pool.
+	 * 
+	 * @param poolTransaction The restored PoolTransaction.
+	 */
+	public synchronized void takeRecovered(PoolTransaction poolTransaction) {
+		outgoing.add(poolTransaction);
+	}
+
+	/**
+	 * @return A copy of the list of addresses currently in the pool.
+	 */
+	public synchronized List<IotaAddress> getAddresses() {
+		return new ArrayList<IotaAddress>(poolList);
+	}
+
 	// TransactionInputSource implementation
 	
 	
@@ -138,13 +165,15 @@ public class IotaAddressPool implements TransactionInputSource {
 		outgoing.remove(poolTransaction);
 
 		poolList.addAll(poolTransaction.iotaAddresses);
-		incoming.add(poolTransaction);
+		index.addAll(poolTransaction.iotaAddresses);
+		pool.add(poolTransaction);
 	}
 
 	// taking money out of the pool
 
 	/** Takes addresses from this pool, with a combined balance of at least the one requested.
 	 * Because all balance on an address must be spend at once, the result might contain more IOTA token than expected.
+	 * The addresses are chosen by the CoinSelection in the IotaConfig.
 	 * 
 	 * @param balance How much balance should be taken into the PoolTransaction.
 	 * @return a PoolTransaction of at least the requested balance, or null if not possible.
@@ -186,26 +215,25 @@ public class IotaAddressPool implements TransactionInputSource {
 			return null;
 	}
 	
+	@Override
+	public synchronized List<PoolTransaction> takeAll(int maxAddresses) {
+		List<PoolTransaction> result = new ArrayList<PoolTransaction>();
+		if (maxAddresses <= 0) {
+			PoolTransaction all = takeAll();
+			if (all != null)
+				result.add(all);
+			return result;
+		}
+		while (!poolList.isEmpty())
+			result.add(take(new ArrayList<IotaAddress>(poolList.subList(0, Math.min(maxAddresses, poolList.size())))));
+		return result;
+	}
+	
 	protected PoolTransaction takeBalanceIntern(long balance, boolean returnAvailableIfLower) {
 		if (pool.getBalance() > balance) {
-			List<IotaAddress> result = new ArrayList<IotaAddress>();
-			long resultBalance = 0;
-			boolean balanceReached = false;
-
-			for (ListIterator<IotaAddress> i = poolList.listIterator(); i.hasNext();) {
-				IotaAddress ia = i.next();
-				result.add(ia);
-				resultBalance += ia.getBalance();
-				if (resultBalance >= balance) {
-					balanceReached = true;
-					break;
-				}
-			}
-			if (balanceReached) {
-				poolList.removeAll(result);
-
-				return take(result, resultBalance);
-			}
+			List<IotaAddress> result = coinSelection.select(index, balance);
+			if (result != null)
+				return take(result);
 		} else if (pool.getBalance() == balance || returnAvailableIfLower) {
 			return takeAll();
 		}
@@ -222,6 +250,7 @@ public class IotaAddressPool implements TransactionInputSource {
 		outgoing.add(poolTransaction);
 
 		poolList.removeAll(poolTransaction.iotaAddresses);
+		index.removeAll(poolTransaction.iotaAddresses);
 		pool.remove(poolTransaction);
 
 		return poolTransaction;
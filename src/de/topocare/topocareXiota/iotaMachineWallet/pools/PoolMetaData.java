@@ -1,15 +1,20 @@
 package de.topocare.topocareXiota.iotaMachineWallet.pools;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import de.topocare.topocareXiota.iotaMachineWallet.poolTransactions.PoolTransaction;
 
 /**
  * Stores balance and addressCount of a pool (different instances used for current, incoming or outgoing).
+ * <p>
+ * Both values are atomic counters, they can be read without holding the pool's monitor.
  * 
  * @author Stefan Kuenne [info@topocare.de]
  */
 class PoolMetaData {
-	private long balance = 0;
-	private int addressCount = 0;
+	private AtomicLong balance = new AtomicLong(0);
+	private AtomicInteger addressCount = new AtomicInteger(0);
 	
 	public PoolMetaData()
 	{
@@ -18,8 +23,8 @@ class PoolMetaData {
 	
 	public PoolMetaData(long balance, int addressCount)
 	{
-		this.balance = balance;
-		this.addressCount = addressCount;
+		this.balance.set(balance);
+		this.addressCount.set(addressCount);
 	}
 
 	/**
@@ -27,8 +32,8 @@ class PoolMetaData {
 	 * @param poolTransaction
 	 */
 	public void add(PoolTransaction poolTransaction) {
-		balance += poolTransaction.balance;
-		addressCount += poolTransaction.addressCount;
+		balance.addAndGet(poolTransaction.balance);
+		addressCount.addAndGet(poolTransaction.addressCount);
 	}
 
 	/**
@@ -36,16 +41,43 @@ class PoolMetaData {
 	 * @param poolTransaction
 	 */
 	public void remove(PoolTransaction poolTransaction) {
-		balance -= poolTransaction.balance;
-		addressCount -= poolTransaction.addressCount;
+		balance.addAndGet(-poolTransaction.balance);
+		addressCount.addAndGet(-poolTransaction.addressCount);
+	}
+
+	/**
+	 * Subtracts addressCount addresses if at least that many are left, balance must be subtracted with removeBalance.
+	 * @param addressCount
+	 * @return true if subtracted, false if not enough addresses
+	 */
+	public boolean tryRemoveAddresses(int addressCount) {
+		int current;
+		do {
+			current = this.addressCount.get();
+			if (current < addressCount)
+				return false;
+		} while (!this.addressCount.compareAndSet(current, current - addressCount));
+		return true;
+	}
+
+	/**
+	 * Sets the addressCount to 0, balance must be subtracted with removeBalance.
+	 * @return the removed addressCount
+	 */
+	public int removeAllAddresses() {
+		return addressCount.getAndSet(0);
+	}
+
+	public void removeBalance(long balance) {
+		this.balance.addAndGet(-balance);
 	}
 
 	public long getBalance() {
-		return balance;
+		return balance.get();
 	}
 
 	public int getAddressCount() {
-		return addressCount;
+		return addressCount.get();
 	}
 
 }
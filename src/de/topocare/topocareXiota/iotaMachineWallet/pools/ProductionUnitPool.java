@@ -0,0 +1,210 @@
+package de.topocare.topocareXiota.iotaMachineWallet.pools;
+
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.productionUnitSize;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+import de.topocare.topocareXiota.iotaMachineWallet.address.IotaAddress;
+import de.topocare.topocareXiota.iotaMachineWallet.address.IotaFreeAddressFactory;
+import de.topocare.topocareXiota.iotaMachineWallet.poolTransactions.PoolTransaction;
+
+/**
+ * An IotaAddressPool holding production units only, each unit on its own
+ * address with a balance of productionUnitSize (IotaConfig).
+ * <p>
+ * Used on the payment path: the units are kept in a lock-free deque and the
+ * counters are atomic, so taking, committing and rolling back units never
+ * blocks on the pool's monitor. Taking n units is constant in the pool size and
+ * allocates only the PoolTransaction and its list of n addresses.
+ * <p>
+ * Balances not being a multiple of productionUnitSize can't be given to this
+ * pool.
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public class ProductionUnitPool extends IotaAddressPool {
+
+	private ConcurrentLinkedDeque<IotaAddress> units = new ConcurrentLinkedDeque<IotaAddress>();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param iotaFreeAddressFactory The IotaFreeAddressFactory used to get unused
+	 *                               addresses for new units.
+	 */
+	public ProductionUnitPool(IotaFreeAddressFactory iotaFreeAddressFactory) {
+		super(iotaFreeAddressFactory);
+	}
+
+	/**
+	 * Constructor, with a starting list of units, but no active transactions.
+	 * 
+	 * @param iotaFreeAddressFactory The IotaFreeAddressFactory used to get unused
+	 *                               addresses for new units.
+	 * @param unitsInPool            IotaAddress-objects holding one unit each.
+	 */
+	public ProductionUnitPool(IotaFreeAddressFactory iotaFreeAddressFactory, List<IotaAddress> unitsInPool) {
+		super(iotaFreeAddressFactory);
+		units.addAll(unitsInPool);
+		pool = new PoolMetaData(unitsInPool.stream().mapToLong(e -> e.getBalance()).sum(), unitsInPool.size());
+	}
+
+	@Override
+	public PoolTransaction giveUnits(int amountInUnits) {
+		PoolTransaction result = new PoolTransaction(iotaFreeAddressFactory, amountInUnits, productionUnitSize, this,
+				true);
+		incoming.add(result);
+		return result;
+	}
+
+	@Override
+	public PoolTransaction giveBalance(long balance) {
+		if (balance % productionUnitSize != 0)
+			throw new IllegalArgumentException("ProductionUnitPool only accepts whole units, not " + balance);
+		return giveUnits((int) (balance / productionUnitSize));
+	}
+
+	@Override
+	public void commitGive(PoolTransaction poolTransaction) {
+		incoming.remove(poolTransaction);
+
+		// units first, the counter must never exceed the deque
+		units.addAll(poolTransaction.iotaAddresses);
+		pool.add(poolTransaction);
+	}
+
+	@Override
+	public void rollbackGive(PoolTransaction poolTransaction) {
+		incoming.remove(poolTransaction);
+	}
+
+	@Override
+	public void commitTake(PoolTransaction poolTransaction) {
+		outgoing.remove(poolTransaction);
+	}
+
+	@Override
+	public void rollbackTake(PoolTransaction poolTransaction) {
+		outgoing.remove(poolTransaction);
+
+		// back to the front, next payment uses them again
+		List<IotaAddress> returned = poolTransaction.iotaAddresses;
+		for (int i = returned.size(); i-- > 0;)
+			units.addFirst(returned.get(i));
+		pool.add(poolTransaction);
+	}
+
+	@Override
+	public PoolTransaction takeElements(int addressCount) {
+		if (addressCount <= 0 || !pool.tryRemoveAddresses(addressCount))
+			return null;
+		return takeReserved(addressCount);
+	}
+
+	@Override
+	public PoolTransaction takeAll() {
+		int addressCount = pool.removeAllAddresses();
+		if (addressCount == 0)
+			return null;
+		return takeReserved(addressCount);
+	}
+
+	@Override
+	public List<PoolTransaction> takeAll(int maxAddresses) {
+		int addressCount = pool.removeAllAddresses();
+		List<PoolTransaction> result = new ArrayList<PoolTransaction>();
+		int step = maxAddresses > 0 ? maxAddresses : addressCount;
+		for (int taken = 0; taken < addressCount; taken += step)
+			result.add(takeReserved(Math.min(step, addressCount - taken)));
+		return result;
+	}
+
+	@Override
+	public PoolTransaction takeBalance(long balance) {
+		return takeElements(unitsFor(balance));
+	}
+
+	@Override
+	public PoolTransaction takeUpToBalance(long balance) {
+		PoolTransaction result = takeElements(unitsFor(balance));
+		return result != null ? result : takeAll();
+	}
+
+	// takes addressCount units already subtracted from the pool's addressCount, allocating the address list and the
+	// PoolTransaction holding it
+	private PoolTransaction takeReserved(int addressCount) {
+		List<IotaAddress> taken = new ArrayList<IotaAddress>(addressCount);
+		long balance = 0;
+		for (int i = 0; i < addressCount; i++) {
+			IotaAddress unit = units.pollFirst();
+			taken.add(unit);
+			balance += unit.getBalance();
+		}
+		pool.removeBalance(balance);
+
+		PoolTransaction poolTransaction = new PoolTransaction(taken, balance, this, true);
+		outgoing.add(poolTransaction);
+		return poolTransaction;
+	}
+
+	private static int unitsFor(long balance) {
+		return (int) ((balance + productionUnitSize - 1) / productionUnitSize);
+	}
+
+	@Override
+	public void giveRecovered(PoolTransaction poolTransaction) {
+		incoming.add(poolTransaction);
+	}
+
+	@Override
+	public void takeRecovered(PoolTransaction poolTransaction) {
+		outgoing.add(poolTransaction);
+	}
+
+	@Override
+	public List<IotaAddress> getAddresses() {
+		return new ArrayList<IotaAddress>(units);
+	}
+
+	@Override
+	public long getBalance() {
+		return pool.getBalance();
+	}
+
+	@Override
+	public int getAddressCount() {
+		return pool.getAddressCount();
+	}
+
+	@Override
+	public long getExpectedBalance() {
+		return pool.getBalance() + incoming.getBalance();
+	}
+
+	@Override
+	public int getExpectedAddressCount() {
+		return pool.getAddressCount() + incoming.getAddressCount();
+	}
+
+	@Override
+	public long getIncomingBalance() {
+		return incoming.getBalance();
+	}
+
+	@Override
+	public int getIncomingAddresscount() {
+		return incoming.getAddressCount();
+	}
+
+	@Override
+	public long getOutgoingBalance() {
+		return outgoing.getBalance();
+	}
+
+	@Override
+	public int getOutgoingAddressCount() {
+		return outgoing.getAddressCount();
+	}
+}
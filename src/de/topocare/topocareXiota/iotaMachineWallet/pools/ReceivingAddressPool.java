@@ -1,31 +1,77 @@
 package de.topocare.topocareXiota.iotaMachineWallet.pools;
 
-import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.api;
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.gateway;
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.journal;
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.coinSelection;
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.receivingHotSeconds;
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.receivingIdlePollTicks;
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.receivingWindowAhead;
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.receivingWindowSize;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.ListIterator;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import de.topocare.topocareXiota.iotaMachineWallet.address.IotaAddress;
+import de.topocare.topocareXiota.iotaMachineWallet.address.IotaFreeAddressFactory;
 import de.topocare.topocareXiota.iotaMachineWallet.poolTransactions.PoolTransaction;
-import jota.dto.response.GetBalancesResponse;
 
 /**
  * A pool of IotaAddress(es), used to receive payments to the wallet.
  * The balance of IotaAddress(es) in this pool are updated each time .updateFromTangle() is called.
  * If addresses are used for transactions via PoolTransactions they will only update once returned with commitTake or rollbackTake.
+ * <p>
+ * Polling is incremental: each address has a slot (by keyIndex). Hot addresses (funded recently, returned from a
+ * PoolTransaction or announced to a customer) are polled on every update for receivingHotSeconds (IotaConfig), the
+ * idle ones in slices, so each idle address is polled every receivingIdlePollTicks updates. The first update polls all
+ * addresses. Only changed balances are applied, as deltas to the available balance, so the cost of an update depends
+ * on the activity, not on the size of the address range.
+ * <p>
+ * With an IotaFreeAddressFactory and receivingWindowSize &gt; 0 the pool is a sliding window: addresses swept by a
+ * committed PoolTransaction are retired (still polled while hot, then dropped), and the window is extended in the
+ * background by fresh addresses of the factory, so receivingWindowAhead fresh addresses are ready to be announced.
+ * The window is not extended beyond receivingWindowSize addresses, the initial range included. Extensions are recorded
+ * in the PoolJournal as content of the pool, retirements by the commit of the sweep.
+ * <p>
+ * Only unused addresses checked against spent-from are announced. Addresses of the factory are already checked, the
+ * initial range and restored extensions are checked by the next updates, spent ones are never announced.
  *
  * @author Stefan Kuenne [info@topocare.de]
  */
 public class ReceivingAddressPool implements TransactionInputSource {
 
-	private List<IotaAddress> addressesAll;
-	private List<IotaAddress> addressesWithBalance = new ArrayList<IotaAddress>();
+	// live addresses by keyIndex
+	private Map<Integer, Slot> slots = new HashMap<Integer, Slot>();
+	// order of the idle polling, retired slots leave it when reached
+	private ArrayDeque<Slot> ring = new ArrayDeque<Slot>();
+	// hot slots with the time they turn idle, in ms
+	private LinkedHashMap<Slot, Long> hotUntil = new LinkedHashMap<Slot, Long>();
+	// never funded, taken or announced, in keyIndex order
+	private LinkedHashSet<Slot> freshSlots = new LinkedHashSet<Slot>();
+	private boolean fullSweepPending = true;
+	private boolean checkingSpent = false;
+	private int lastPolled = 0;
+
+	private LinkedHashSet<IotaAddress> addressesWithBalance = new LinkedHashSet<IotaAddress>();
+	private BalanceIndex index = new BalanceIndex();
 
 	private long balanceAvailable = 0;
 	private PoolMetaData outgoing = new PoolMetaData();
 
+	// sliding window, null for a fixed range
+	private IotaFreeAddressFactory addressFactory;
+	private ExecutorService windowExtension;
+	private boolean extending = false;
+	private long retired = 0;
+
 	/**
 	 * Constructor. 
 	 * @param keyIndexFirst The keyIndex of the first address to be included in the pool.
@@ -33,7 +79,26 @@ public class ReceivingAddressPool implements TransactionInputSource {
 	 */
 	public ReceivingAddressPool(int keyIndexFirst, int keyIndexLast)
 	{
-		addressesAll = IotaAddress.newListOfUncheckedAddresses(keyIndexFirst, keyIndexLast);
+		this(IotaAddress.newListOfUncheckedAddressesParallel(keyIndexFirst, keyIndexLast));
+	}
+	
+	/**
+	 * Constructor of a sliding window, if receivingWindowSize (IotaConfig) is greater than 0.
+	 * @param keyIndexFirst The keyIndex of the first address of the initial window.
+	 * @param keyIndexLast The keyIndex of the last address of the initial window.
+	 * @param addressFactory source of the fresh addresses extending the window
+	 */
+	public ReceivingAddressPool(int keyIndexFirst, int keyIndexLast, IotaFreeAddressFactory addressFactory)
+	{
+		this(keyIndexFirst, keyIndexLast);
+		if (receivingWindowSize > 0) {
+			this.addressFactory = addressFactory;
+			windowExtension = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "ReceivingWindow");
+				t.setDaemon(true);
+				return t;
+			});
+		}
 	}
 	
 	/**
@@ -55,42 +120,256 @@ public class ReceivingAddressPool implements TransactionInputSource {
 	 */
 	public ReceivingAddressPool(List<IotaAddress> addresses, long outgoingBalance, int outgoingAddressCount)
 	{
-		addressesAll = new ArrayList<IotaAddress>(addresses);
+		addAddresses(addresses, false);
 		outgoing = new PoolMetaData(outgoingBalance, outgoingAddressCount);
 	}
 	
+	/**
+	 * Adds the window extensions restored from the PoolJournal, not journaled again.
+	 * @param addresses IotaAddresses to be included.
+	 */
+	public synchronized void addRecovered(List<IotaAddress> addresses)
+	{
+		addAddresses(addresses, false);
+	}
 	
-	/** Updates the balance of all IotaAddresses in the pool with their confirmed values on the iota-tangle.
+	/**
+	 * @param addresses IotaAddresses to be included.
+	 * @param checked true if the addresses are checked against spent-from (IotaFreeAddressFactory)
+	 * @return the addresses not yet part of the pool
+	 */
+	private List<IotaAddress> addAddresses(List<IotaAddress> addresses, boolean checked)
+	{
+		List<IotaAddress> added = new ArrayList<IotaAddress>(addresses.size());
+		for (IotaAddress address : addresses) {
+			if (slots.containsKey(address.getKeyIndex()))
+				continue;
+			Slot slot = new Slot(address);
+			slot.checked = checked;
+			slots.put(address.getKeyIndex(), slot);
+			ring.add(slot);
+			freshSlots.add(slot);
+			added.add(address);
+		}
+		return added;
+	}
+	
+	
+	/** Updates the balance of the hot and the next idle IotaAddresses in the pool with their confirmed values on the iota-tangle.
 	 *  Addresses currently used in PoolTransactions are not part of the pool until returned (commit/rollback) and not updated.
+	 *  The balances are requested by the TangleGateway, the pool is not locked while the request is pending.
+	 *  A sliding window is extended in the background if fresh addresses are missing.
 	 *  
-	 * @return <code>true</code> if balances of addresses where changes, <code>false</code> if not.
+	 * @return completes with <code>true</code> if balances of addresses where changes, <code>false</code> if not.
+	 */
+	public CompletableFuture<Boolean> updateFromTangle()
+	{
+		extendWindow();
+		checkSpent();
+		List<Slot> polled;
+		List<IotaAddress> addresses;
+		synchronized (this) {
+			polled = slotsToPoll();
+			addresses = new ArrayList<IotaAddress>(polled.size());
+			for (Slot slot : polled)
+				addresses.add(slot.address);
+		}
+		if (polled.isEmpty())
+			return CompletableFuture.completedFuture(false);
+		return gateway.getBalances(IotaAddress.asStringList_getAddress(addresses))
+				.handle((tangleBalances, e) -> applyBalances(polled, tangleBalances, e));
+	}
+	
+	/**
+	 * Polls the address on every update for the next receivingHotSeconds, e.g. after it was given to a customer.
+	 * 
+	 * @param keyIndex keyIndex of the address, ignored if not part of this pool
 	 */
-	public synchronized boolean updateFromTangle()
+	public synchronized void markHot(int keyIndex)
+	{
+		Slot slot = slots.get(keyIndex);
+		if (slot != null) {
+			freshSlots.remove(slot);
+			markHot(slot);
+		}
+	}
+	
+	/**
+	 * Hands out a fresh address to receive a payment, e.g. to show it to a customer. Only addresses checked against
+	 * spent-from are handed out. The address is polled on every update for the next receivingHotSeconds, a sliding
+	 * window is extended in the background.
+	 * 
+	 * @return the address, or null if no checked fresh address is left
+	 */
+	public IotaAddress announceAddress()
+	{
+		IotaAddress result = null;
+		synchronized (this) {
+			for (Iterator<Slot> i = freshSlots.iterator(); i.hasNext();) {
+				Slot slot = i.next();
+				if (slot.checked) {
+					i.remove();
+					markHot(slot);
+					result = slot.address;
+					break;
+				}
+			}
+		}
+		extendWindow();
+		return result;
+	}
+	
+	/**
+	 * @param address an address handed out by announceAddress()
+	 * @return true if it is still part of the pool and was neither funded nor swept
+	 */
+	public synchronized boolean isUnused(IotaAddress address)
+	{
+		Slot slot = slots.get(address.getKeyIndex());
+		return slot != null && !slot.used;
+	}
+	
+	private void markHot(Slot slot)
+	{
+		hotUntil.remove(slot);
+		hotUntil.put(slot, System.currentTimeMillis() + receivingHotSeconds * 1000L);
+	}
+	
+	// requests fresh addresses from the factory, one extension at a time
+	private void extendWindow()
+	{
+		int missing;
+		synchronized (this) {
+			if (addressFactory == null || extending)
+				return;
+			missing = Math.min(receivingWindowAhead - freshSlots.size(), receivingWindowSize - slots.size());
+			if (missing <= 0)
+				return;
+			extending = true;
+		}
+		windowExtension.execute(() -> {
+			List<IotaAddress> fresh = null;
+			try {
+				fresh = addressFactory.getNextFreeAddresses(missing);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			synchronized (this) {
+				extending = false;
+				if (fresh != null) {
+					List<IotaAddress> added = addAddresses(fresh, true);
+					if (journal != null)
+						journal.recordContent(this, added);
+				}
+			}
+		});
+	}
+	
+	// checks the fresh addresses not validated by the factory against spent-from, one request at a time
+	private void checkSpent()
+	{
+		List<Slot> unchecked = new ArrayList<Slot>();
+		synchronized (this) {
+			if (checkingSpent)
+				return;
+			for (Slot slot : freshSlots)
+				if (!slot.checked)
+					unchecked.add(slot);
+			if (unchecked.isEmpty())
+				return;
+			checkingSpent = true;
+		}
+		String[] addresses = new String[unchecked.size()];
+		for (int i = 0; i < addresses.length; i++)
+			addresses[i] = unchecked.get(i).address.getAddress();
+		gateway.wereAddressesSpentFrom(addresses).whenComplete((spent, e) -> {
+			synchronized (this) {
+				checkingSpent = false;
+				if (e != null) {
+					e.printStackTrace();
+					return;
+				}
+				for (int i = 0; i < spent.length; i++) {
+					Slot slot = unchecked.get(i);
+					if (spent[i]) {
+						slot.used = true;
+						freshSlots.remove(slot);
+					} else
+						slot.checked = true;
+				}
+			}
+		});
+	}
+	
+	// hot slots, then the next slice of idle slots (all on the first update)
+	private List<Slot> slotsToPoll()
+	{
+		List<Slot> polled = new ArrayList<Slot>();
+		long now = System.currentTimeMillis();
+		for (Iterator<Map.Entry<Slot, Long>> i = hotUntil.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<Slot, Long> hot = i.next();
+			Slot slot = hot.getKey();
+			if (hot.getValue() < now) {
+				i.remove();
+				// end of the grace time of a swept address
+				if (slot.retired && !slot.taken && slot.counted == 0)
+					slots.remove(slot.address.getKeyIndex());
+			}
+			else if (!slot.taken)
+				polled.add(slot);
+		}
+		
+		int ticks = Math.max(1, receivingIdlePollTicks);
+		int slice = fullSweepPending ? ring.size() : (ring.size() + ticks - 1) / ticks;
+		fullSweepPending = false;
+		for (int n = 0; n < slice && !ring.isEmpty(); n++) {
+			Slot slot = ring.poll();
+			if (slot.retired)
+				continue;
+			ring.add(slot);
+			if (!slot.taken && !hotUntil.containsKey(slot))
+				polled.add(slot);
+		}
+		lastPolled = polled.size();
+		return polled;
+	}
+	
+	private synchronized boolean applyBalances(List<Slot> polled, long[] tangleBalances, Throwable error)
 	{
+		if (error != null) {
+			error.printStackTrace();
+			return false;
+		}
 		boolean changes = false;
-		try {
-			
-			GetBalancesResponse balanceResponse = api.getBalances(100, IotaAddress.asStringList_getAddress(addressesAll));
-			String tangleBalances[] = balanceResponse.getBalances();
+		for(int i = 0; i<tangleBalances.length; i++)
+		{
+			Slot slot = polled.get(i);
+			// taken or dropped while the request was pending
+			if (slot.taken || slots.get(slot.address.getKeyIndex()) != slot)
+				continue;
+			IotaAddress addr = slot.address;
+			long balance = tangleBalances[i];
+			addr.setBalance(balance);
+			if (balance == slot.counted)
+				continue;
 			
-			
-			for(int i = 0; i<tangleBalances.length; i++)
-			{
-					IotaAddress addr = addressesAll.get(i);
-					long balance = Long.parseLong(tangleBalances[i]);
-					if (balance != addr.getBalance())
-					{
-						addr.setBalance(balance);
-						changes = true;
-					}
-					
+			if (slot.counted > 0) {
+				addressesWithBalance.remove(addr);
+				index.remove(addr);
+			}
+			if (balance > slot.counted) {
+				slot.used = true;
+				freshSlots.remove(slot);
+				markHot(slot);
 			}
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			balanceAvailable += balance - slot.counted;
+			slot.counted = balance;
+			if (balance > 0) {
+				addressesWithBalance.add(addr);
+				index.add(addr);
+			}
+			changes = true;
 		}
-		addressesWithBalance = addressesAll.stream().filter(e -> e.getBalance() > 0).collect(Collectors.<IotaAddress>toList());
-		balanceAvailable = addressesWithBalance.stream().mapToLong(e -> e.getBalance()).sum();
 		return changes;
 	}
 	
@@ -102,26 +381,17 @@ public class ReceivingAddressPool implements TransactionInputSource {
 
 	/** Takes addresses from this pool, with a combined balance of at least the one requested.
 	 * Because all balance on an address must be spend at once, the result might contain more IOTA token than expected.
+	 * The addresses are chosen by the CoinSelection in the IotaConfig.
 	 * 
 	 * @param balance How much balance should be taken into the PoolTransaction.
 	 * @return a PoolTransaction of at least the requested balance, or null if not possible.
 	 */
 	public synchronized PoolTransaction takeBalance(long balance) {
 		if (balanceAvailable >= balance) {
-			List<IotaAddress> result = new ArrayList<IotaAddress>();
-			long resultBalance = 0;
-
-			for (ListIterator<IotaAddress> i = addressesWithBalance.listIterator(); i.hasNext();) {
-				IotaAddress ia = i.next();
-				if (ia.getBalance() > 0) {
-					result.add(ia);
-					resultBalance += ia.getBalance();
-					if (resultBalance >= balance) {
-						break;
-					}
-				}
-			}
-			return makePoolTransaction(result, resultBalance);
+			List<IotaAddress> result = coinSelection.select(index, balance);
+			if (result == null)
+				return null;
+			return makePoolTransaction(result, result.stream().mapToLong(e -> e.getBalance()).sum());
 		} else
 			return null;
 	}
@@ -134,20 +404,9 @@ public class ReceivingAddressPool implements TransactionInputSource {
 	 * @return PoolTransaction
 	 */
 	public synchronized PoolTransaction takeUpToBalance(long balance) {
-		List<IotaAddress> result = new ArrayList<IotaAddress>();
-		long resultBalance = 0;
-
-		for (ListIterator<IotaAddress> i = addressesWithBalance.listIterator(); i.hasNext();) {
-			IotaAddress ia = i.next();
-			if (ia.getBalance() > 0) {
-				result.add(ia);
-				resultBalance += ia.getBalance();
-				if (resultBalance >= balance) {
-					break;
-				}
-			}
-		}
-		return makePoolTransaction(result, resultBalance);
+		if (balanceAvailable <= balance)
+			return takeAll();
+		return takeBalance(balance);
 	}
 
 	/** Takes all addresses from the transaction pool.
@@ -155,16 +414,48 @@ public class ReceivingAddressPool implements TransactionInputSource {
 	 * @return A PoolTransaction with all content of the pool, or null if pool was empty.
 	 */
 	public synchronized PoolTransaction takeAll() {
-		return makePoolTransaction(addressesWithBalance, balanceAvailable);
+		return makePoolTransaction(new ArrayList<IotaAddress>(addressesWithBalance), balanceAvailable);
+	}
+
+	/** Takes all addresses from the transaction pool, split into PoolTransactions of at most maxAddresses addresses.
+	 * 
+	 * @param maxAddresses maximum addresses per PoolTransaction, 0 = no limit
+	 * @return The PoolTransactions, empty if the pool was empty.
+	 */
+	public synchronized List<PoolTransaction> takeAll(int maxAddresses) {
+		List<PoolTransaction> result = new ArrayList<PoolTransaction>();
+		if (addressesWithBalance.isEmpty())
+			return result;
+		if (maxAddresses <= 0) {
+			result.add(takeAll());
+			return result;
+		}
+		while (!addressesWithBalance.isEmpty()) {
+			List<IotaAddress> part = new ArrayList<IotaAddress>(maxAddresses);
+			for (Iterator<IotaAddress> i = addressesWithBalance.iterator(); i.hasNext() && part.size() < maxAddresses;)
+				part.add(i.next());
+			result.add(makePoolTransaction(part, part.stream().mapToLong(e -> e.getBalance()).sum()));
+		}
+		return result;
+	}
+
+	/** Restores a PoolTransaction taking addresses from this pool from the PoolJournal, adding it to the outgoing values.
+	 * 
+	 * @param poolTransaction The restored PoolTransaction.
+	 */
+	public synchronized void takeRecovered(PoolTransaction poolTransaction) {
+		outgoing.add(poolTransaction);
+		for (IotaAddress address : poolTransaction.iotaAddresses)
+			reserve(address);
 	}
 
 	@Override
 	/** Commits a PoolTransaction generated by one of this object's take-methods.
 	 * Balance and addressCount of the PoolTransaction will be removed from the outgoing values.
-	 * The addresses will be returned to the pool.
+	 * The addresses will be returned to the pool, or retired by a sliding window.
 	 */
 	public synchronized void commitTake(PoolTransaction poolTransaction) {
-		undoReservation(poolTransaction);
+		undoReservation(poolTransaction, addressFactory != null);
 	}
 
 	@Override
@@ -173,19 +464,45 @@ public class ReceivingAddressPool implements TransactionInputSource {
 	 * The addresses will be returned to the pool.
 	 */
 	public synchronized void rollbackTake(PoolTransaction poolTransaction) {
-		undoReservation(poolTransaction);
+		undoReservation(poolTransaction, false);
 	}
 	
-	private void undoReservation(PoolTransaction poolTransaction)
+	// the addresses are back in the pool, their balance is applied by the next update
+	private void undoReservation(PoolTransaction poolTransaction, boolean retire)
 	{
 		outgoing.remove(poolTransaction);
-		addressesAll.addAll(poolTransaction.iotaAddresses);
+		for (IotaAddress address : poolTransaction.iotaAddresses) {
+			Slot slot = slots.get(address.getKeyIndex());
+			if (slot != null) {
+				slot.taken = false;
+				if (retire && !slot.retired) {
+					slot.retired = true;
+					retired++;
+				}
+				markHot(slot);
+			}
+		}
+	}
+	
+	// removes an address from the available ones until returned by commitTake/rollbackTake
+	private void reserve(IotaAddress address)
+	{
+		Slot slot = slots.get(address.getKeyIndex());
+		if (slot == null)
+			return;
+		addressesWithBalance.remove(slot.address);
+		index.remove(slot.address);
+		freshSlots.remove(slot);
+		balanceAvailable -= slot.counted;
+		slot.counted = 0;
+		slot.taken = true;
+		slot.used = true;
 	}
 	
 	private PoolTransaction makePoolTransaction(List<IotaAddress> iotaAddresses, long balance) {
-
-		addressesWithBalance.removeAll(iotaAddresses);
-		balanceAvailable -= balance;
+		// copy, iotaAddresses may be a view of addressesWithBalance
+		iotaAddresses = new ArrayList<IotaAddress>(iotaAddresses);
+		iotaAddresses.forEach(e -> reserve(e));
 
 		return new PoolTransaction(iotaAddresses, balance, this, false);
 	}
@@ -207,4 +524,63 @@ public class ReceivingAddressPool implements TransactionInputSource {
 	{
 		return this.outgoing.getAddressCount();
 	}
+	
+	/**
+	 * @return number of addresses polled on every update
+	 */
+	public synchronized int getHotAddressCount()
+	{
+		return hotUntil.size();
+	}
+	
+	/**
+	 * @return number of addresses polled by the last update
+	 */
+	public synchronized int getLastPolledCount()
+	{
+		return lastPolled;
+	}
+	
+	/**
+	 * @return number of addresses in the pool, including retired ones still polled
+	 */
+	public synchronized int getWindowSize()
+	{
+		return slots.size();
+	}
+	
+	/**
+	 * @return number of fresh addresses ready to be announced
+	 */
+	public synchronized int getFreshAddressCount()
+	{
+		return freshSlots.size();
+	}
+	
+	/**
+	 * @return number of addresses retired since the start
+	 */
+	public synchronized long getRetiredCount()
+	{
+		return retired;
+	}
+	
+	/**
+	 * One address of the pool.
+	 */
+	private static class Slot {
+		final IotaAddress address;
+		// balance included in balanceAvailable, 0 while taken
+		long counted = 0;
+		boolean taken = false;
+		boolean retired = false;
+		// funded or taken, never announced again
+		boolean used = false;
+		// checked against spent-from
+		boolean checked = false;
+
+		Slot(IotaAddress address) {
+			this.address = address;
+		}
+	}
 }
@@ -1,5 +1,7 @@
 package de.topocare.topocareXiota.iotaMachineWallet.pools;
 
+import java.util.List;
+
 import de.topocare.topocareXiota.iotaMachineWallet.poolTransactions.PoolTransaction;
 
 
@@ -15,6 +17,14 @@ public interface TransactionInputSource {
 	//public PoolTransaction takeAddresses(int Addresses);
 	public PoolTransaction takeAll();
 	
+	/**
+	 * Takes all addresses, split into PoolTransactions of at most maxAddresses addresses each.
+	 * 
+	 * @param maxAddresses maximum addresses per PoolTransaction, 0 = no limit
+	 * @return the PoolTransactions, empty if the pool was empty
+	 */
+	public List<PoolTransaction> takeAll(int maxAddresses);
+	
 	public void commitTake(PoolTransaction poolTransaction);
 	public void rollbackTake(PoolTransaction poolTransaction);
 
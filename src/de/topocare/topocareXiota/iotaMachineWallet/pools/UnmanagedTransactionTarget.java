@@ -36,6 +36,19 @@ public class UnmanagedTransactionTarget {
 	}
 
 
+	/** 
+	 * Restores a PoolTransactionUnmanagedOutput from the PoolJournal, adding its balance to the incomingBalance.
+	 * 
+	 * @param journalId id of the PoolTransactionUnmanagedOutput in the journal
+	 * @param balance
+	 * @return
+	 */
+	public synchronized PoolTransactionUnmanagedOutput giveRecovered(long journalId, long balance) {
+		this.incomingBalance+=balance;
+		return new PoolTransactionUnmanagedOutput(journalId, this, balance, address);
+	}
+
+
 	/** 
 	 * Commits a PoolTransactionUnmanagedOutput provided previously by the give-method and removes the balance from the incomingBalance.
 	 */
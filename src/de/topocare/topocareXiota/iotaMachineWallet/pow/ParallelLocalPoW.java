@@ -0,0 +1,250 @@
+package de.topocare.topocareXiota.iotaMachineWallet.pow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jota.IotaLocalPoW;
+import jota.utils.Converter;
+
+/**
+ * Local proof of work for IOTA transactions, searching the nonce on all
+ * available cores.
+ * <p>
+ * Curl-P-81 is computed on 64 nonce candidates at once: each trit of the state
+ * is stored as two <code>long</code> (low and high bits), one candidate per bit
+ * lane. Every worker starts at its own offset of the nonce space and stops as
+ * soon as one worker found a nonce matching the minWeightMagnitude.
+ * <p>
+ * The worker threads are kept between calls, so bundles with many
+ * transactions do not start new threads for each transaction.
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public class ParallelLocalPoW implements IotaLocalPoW {
+
+	private static final int TRANSACTION_LENGTH = 8019;
+	private static final int HASH_LENGTH = 243;
+	private static final int STATE_LENGTH = 3 * HASH_LENGTH;
+	private static final int NUMBER_OF_ROUNDS = 81;
+	private static final int NONCE_OFFSET = TRANSACTION_LENGTH - HASH_LENGTH;
+	private static final int NONCE_START = HASH_LENGTH - 81;
+
+	private static final long HIGH_BITS = 0xFFFFFFFFFFFFFFFFL;
+	private static final long LOW_BITS = 0x0000000000000000L;
+
+	// first four nonce trits of the 64 lanes, all 64 combinations differ
+	private static final long LOW_0 = 0xDB6DB6DB6DB6DB6DL;
+	private static final long HIGH_0 = 0xB6DB6DB6DB6DB6DBL;
+	private static final long LOW_1 = 0xF1F8FC7E3F1F8FC7L;
+	private static final long HIGH_1 = 0x8FC7E3F1F8FC7E3FL;
+	private static final long LOW_2 = 0x7FFFE00FFFFC01FFL;
+	private static final long HIGH_2 = 0xFFC01FFFF803FFFFL;
+	private static final long LOW_3 = 0xFFC0000007FFFFFFL;
+	private static final long HIGH_3 = 0x003FFFFFFFFFFFFFL;
+
+	private int threadCount;
+	private ExecutorService workers;
+
+	/**
+	 * Constructor, using all available processors.
+	 */
+	public ParallelLocalPoW() {
+		this(0);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param threadCount number of threads searching in parallel,
+	 *                    availableProcessors() if < 1
+	 */
+	public ParallelLocalPoW(int threadCount) {
+		if (threadCount < 1)
+			threadCount = Runtime.getRuntime().availableProcessors();
+		this.threadCount = threadCount;
+		workers = Executors.newFixedThreadPool(threadCount, r -> {
+			Thread t = new Thread(r, "ParallelLocalPoW");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Performs the proof of work on a single transaction.
+	 * 
+	 * @param trytes             the transaction (2673 trytes), nonce will be
+	 *                           replaced
+	 * @param minWeightMagnitude number of trailing zero trits of the hash
+	 * @return the transaction trytes including the found nonce
+	 */
+	@Override
+	public String performPoW(String trytes, int minWeightMagnitude) {
+		int[] transactionTrits = Converter.trits(trytes);
+		if (!search(transactionTrits, minWeightMagnitude))
+			throw new IllegalStateException("proof of work interrupted");
+		return Converter.trytes(transactionTrits);
+	}
+
+	/**
+	 * Searches a nonce, writing it into the last 81 trits of transactionTrits.
+	 * 
+	 * @return true if a nonce was found, false if interrupted
+	 */
+	boolean search(int[] transactionTrits, int minWeightMagnitude) {
+		if (transactionTrits.length != TRANSACTION_LENGTH)
+			throw new IllegalArgumentException("invalid transaction length: " + transactionTrits.length);
+		if (minWeightMagnitude < 0 || minWeightMagnitude > HASH_LENGTH)
+			throw new IllegalArgumentException("invalid minWeightMagnitude: " + minWeightMagnitude);
+
+		// absorb everything except the last 243 trits once, shared by all workers
+		long[] midStateLow = new long[STATE_LENGTH];
+		long[] midStateHigh = new long[STATE_LENGTH];
+		for (int i = HASH_LENGTH; i < STATE_LENGTH; i++) {
+			midStateLow[i] = HIGH_BITS;
+			midStateHigh[i] = HIGH_BITS;
+		}
+		long[] scratchLow = new long[STATE_LENGTH];
+		long[] scratchHigh = new long[STATE_LENGTH];
+
+		int offset = 0;
+		for (int chunk = NONCE_OFFSET / HASH_LENGTH; chunk-- > 0;) {
+			for (int i = 0; i < HASH_LENGTH; i++)
+				setTrit(midStateLow, midStateHigh, i, transactionTrits[offset++]);
+			transform(midStateLow, midStateHigh, scratchLow, scratchHigh);
+		}
+		for (int i = 0; i < NONCE_START; i++)
+			setTrit(midStateLow, midStateHigh, i, transactionTrits[offset++]);
+
+		midStateLow[NONCE_START] = LOW_0;
+		midStateHigh[NONCE_START] = HIGH_0;
+		midStateLow[NONCE_START + 1] = LOW_1;
+		midStateHigh[NONCE_START + 1] = HIGH_1;
+		midStateLow[NONCE_START + 2] = LOW_2;
+		midStateHigh[NONCE_START + 2] = HIGH_2;
+		midStateLow[NONCE_START + 3] = LOW_3;
+		midStateHigh[NONCE_START + 3] = HIGH_3;
+
+		AtomicBoolean found = new AtomicBoolean(false);
+		List<Future<?>> futures = new ArrayList<Future<?>>(threadCount);
+		for (int t = 0; t < threadCount; t++) {
+			int threadIndex = t;
+			futures.add(workers.submit(() -> searchLane(transactionTrits, minWeightMagnitude, midStateLow,
+					midStateHigh, threadIndex, found)));
+		}
+
+		try {
+			for (Future<?> f : futures)
+				f.get();
+		} catch (InterruptedException e) {
+			found.set(true);
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			found.set(true);
+			throw new IllegalStateException(e.getCause());
+		}
+		return true;
+	}
+
+	private static void searchLane(int[] transactionTrits, int minWeightMagnitude, long[] sharedMidStateLow,
+			long[] sharedMidStateHigh, int threadIndex, AtomicBoolean found) {
+		long[] midStateLow = sharedMidStateLow.clone();
+		long[] midStateHigh = sharedMidStateHigh.clone();
+		long[] stateLow = new long[STATE_LENGTH];
+		long[] stateHigh = new long[STATE_LENGTH];
+		long[] scratchLow = new long[STATE_LENGTH];
+		long[] scratchHigh = new long[STATE_LENGTH];
+
+		// separate part of the nonce space for each thread
+		for (int i = threadIndex; i-- > 0;)
+			increment(midStateLow, midStateHigh, NONCE_START + HASH_LENGTH / 9, NONCE_START + (HASH_LENGTH / 9) * 2);
+
+		while (!found.get()) {
+			increment(midStateLow, midStateHigh, NONCE_START + (HASH_LENGTH / 9) * 2, HASH_LENGTH);
+
+			System.arraycopy(midStateLow, 0, stateLow, 0, STATE_LENGTH);
+			System.arraycopy(midStateHigh, 0, stateHigh, 0, STATE_LENGTH);
+			transform(stateLow, stateHigh, scratchLow, scratchHigh);
+
+			// lanes with minWeightMagnitude trailing zero trits
+			long mask = HIGH_BITS;
+			for (int i = minWeightMagnitude; i-- > 0;) {
+				mask &= ~(stateLow[HASH_LENGTH - 1 - i] ^ stateHigh[HASH_LENGTH - 1 - i]);
+				if (mask == 0)
+					break;
+			}
+			if (mask == 0)
+				continue;
+
+			if (found.compareAndSet(false, true)) {
+				long outMask = Long.lowestOneBit(mask);
+				for (int i = 0; i < HASH_LENGTH; i++)
+					transactionTrits[NONCE_OFFSET + i] = (midStateLow[i] & outMask) == 0 ? 1
+							: (midStateHigh[i] & outMask) == 0 ? -1 : 0;
+			}
+			return;
+		}
+	}
+
+	private static void setTrit(long[] low, long[] high, int index, int trit) {
+		switch (trit) {
+		case 0:
+			low[index] = HIGH_BITS;
+			high[index] = HIGH_BITS;
+			break;
+		case 1:
+			low[index] = LOW_BITS;
+			high[index] = HIGH_BITS;
+			break;
+		default:
+			low[index] = HIGH_BITS;
+			high[index] = LOW_BITS;
+		}
+	}
+
+	/**
+	 * Curl-P-81 transformation on all 64 lanes.
+	 */
+	private static void transform(long[] stateLow, long[] stateHigh, long[] scratchLow, long[] scratchHigh) {
+		int scratchIndex = 0;
+		for (int round = 0; round < NUMBER_OF_ROUNDS; round++) {
+			System.arraycopy(stateLow, 0, scratchLow, 0, STATE_LENGTH);
+			System.arraycopy(stateHigh, 0, scratchHigh, 0, STATE_LENGTH);
+
+			for (int stateIndex = 0; stateIndex < STATE_LENGTH; stateIndex++) {
+				long alpha = scratchLow[scratchIndex];
+				long beta = scratchHigh[scratchIndex];
+				scratchIndex += scratchIndex < 365 ? 364 : -365;
+				long gamma = scratchHigh[scratchIndex];
+				long delta = (alpha | (~gamma)) & (scratchLow[scratchIndex] ^ beta);
+
+				stateLow[stateIndex] = ~delta;
+				stateHigh[stateIndex] = (alpha ^ gamma) | delta;
+			}
+		}
+	}
+
+	/**
+	 * Adds 1 (balanced ternary) to the trits between fromIndex and toIndex of all
+	 * lanes.
+	 */
+	private static void increment(long[] low, long[] high, int fromIndex, int toIndex) {
+		for (int i = fromIndex; i < toIndex; i++) {
+			if (low[i] == LOW_BITS) {
+				low[i] = HIGH_BITS;
+				high[i] = LOW_BITS;
+			} else if (high[i] == LOW_BITS) {
+				high[i] = HIGH_BITS;
+				break;
+			} else {
+				low[i] = LOW_BITS;
+				break;
+			}
+		}
+	}
+}
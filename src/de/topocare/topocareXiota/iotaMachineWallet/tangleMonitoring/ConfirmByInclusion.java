@@ -0,0 +1,142 @@
+package de.topocare.topocareXiota.iotaMachineWallet.tangleMonitoring;
+
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.gateway;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import de.topocare.topocareXiota.iotaMachineWallet.tangleTransactions.TangleTransaction;
+
+/**
+ * Handles the confirmation of transaction-bundles on the tangle by the inclusion state of their tail transactions.
+ * <p>
+ * Every attachment and reattachment of a bundle registers its tail hash. updateFromTangle requests the latest
+ * inclusion states of all registered tails in concurrent batches, a bundle is confirmed as soon as one of its tails is. Unlike
+ * ConfirmOnTangle no reference address is needed, and funds arriving twice on an address can't be mistaken for a
+ * confirmation.
+ * <p>
+ * Newly confirmed bundles are passed to the confirmationListener. A ConfirmationFeed can report confirmed tails as
+ * they arrive (confirmTail), the confirmationListener is then called immediately instead of waiting for the next poll.
+ * <p>
+ * registerTail adds a tail hash of a bundle;
+ * <p>
+ * updateFromTangle performs the pull;
+ * <p>
+ * isConfirmed returns if a bundle has been confirmed and deletes it when the result was true
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public class ConfirmByInclusion {
+
+	private static final int BATCH_SIZE = 250;
+
+	private Map<String, TangleTransaction> bundleByTail = new LinkedHashMap<String, TangleTransaction>();
+	private Map<TangleTransaction, List<String>> tailsByBundle = new HashMap<TangleTransaction, List<String>>();
+	private Set<TangleTransaction> confirmed = new HashSet<TangleTransaction>();
+
+	private volatile Consumer<TangleTransaction> confirmationListener;
+
+	/**
+	 * Pulls the inclusion states by the TangleGateway, batches are requested concurrently. The confirmationListener
+	 * is called for each newly confirmed bundle.
+	 * 
+	 * @return completes when all batches are evaluated
+	 */
+	public CompletableFuture<Void> updateFromTangle() {
+		List<String> tails = getTails();
+		List<CompletableFuture<Void>> batches = new ArrayList<CompletableFuture<Void>>();
+		for (int from = 0; from < tails.size(); from += BATCH_SIZE) {
+			String[] batch = tails.subList(from, Math.min(from + BATCH_SIZE, tails.size())).toArray(new String[0]);
+			batches.add(gateway.getLatestInclusion(batch).handle((states, e) -> {
+				if (e != null) {
+					e.printStackTrace();
+					return null;
+				}
+				Consumer<TangleTransaction> listener = confirmationListener;
+				List<TangleTransaction> newlyConfirmed = evaluate(batch, states);
+				if (listener != null)
+					newlyConfirmed.forEach(listener);
+				return null;
+			}));
+		}
+		return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[batches.size()]));
+	}
+
+	private synchronized List<TangleTransaction> evaluate(String[] batch, boolean[] states) {
+		List<TangleTransaction> newlyConfirmed = new ArrayList<TangleTransaction>();
+		for (int i = 0; i < states.length; i++) {
+			TangleTransaction bundle = bundleByTail.get(batch[i]);
+			// removed while the request was pending
+			if (bundle == null)
+				continue;
+			if (states[i] && confirmed.add(bundle))
+				newlyConfirmed.add(bundle);
+		}
+		return newlyConfirmed;
+	}
+
+	/**
+	 * Adds the tail hash of an attachment of a bundle.
+	 *
+	 * @param bundle   the TangleTransaction attached
+	 * @param tailHash hash of the tail transaction of the attachment
+	 */
+	public synchronized void registerTail(TangleTransaction bundle, String tailHash) {
+		bundleByTail.put(tailHash, bundle);
+		tailsByBundle.computeIfAbsent(bundle, b -> new ArrayList<String>()).add(tailHash);
+	}
+
+	/**
+	 * Marks the bundle of a tail as confirmed, used by a ConfirmationFeed. Hashes not registered are ignored.
+	 *
+	 * @param hash hash of a confirmed transaction
+	 */
+	public void confirmTail(String hash) {
+		TangleTransaction bundle;
+		synchronized (this) {
+			bundle = bundleByTail.get(hash);
+			if (bundle == null || !confirmed.add(bundle))
+				return;
+		}
+		Consumer<TangleTransaction> listener = confirmationListener;
+		if (listener != null)
+			listener.accept(bundle);
+	}
+
+	/**
+	 * Sets the consumer called for bundles confirmed by confirmTail.
+	 */
+	public void setConfirmationListener(Consumer<TangleTransaction> confirmationListener) {
+		this.confirmationListener = confirmationListener;
+	}
+
+	/**
+	 * @return a copy of all registered tail hashes
+	 */
+	public synchronized List<String> getTails() {
+		return new ArrayList<String>(bundleByTail.keySet());
+	}
+
+	/**
+	 * @return true if at least one tail of the bundle is registered
+	 */
+	public synchronized boolean isRegistered(TangleTransaction bundle) {
+		return tailsByBundle.containsKey(bundle);
+	}
+
+	public synchronized boolean isConfirmed(TangleTransaction bundle) {
+		if (confirmed.remove(bundle)) {
+			tailsByBundle.remove(bundle).forEach(tail -> bundleByTail.remove(tail));
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return number of tails polled per update
+	 */
+	public synchronized int getTailCount() {
+		return bundleByTail.size();
+	}
+}
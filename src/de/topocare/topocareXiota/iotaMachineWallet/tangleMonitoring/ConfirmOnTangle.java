@@ -1,11 +1,12 @@
 package de.topocare.topocareXiota.iotaMachineWallet.tangleMonitoring;
 
-import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.api;
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.gateway;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 import de.topocare.topocareXiota.iotaMachineWallet.address.IotaAddress;
-import jota.dto.response.GetBalancesResponse;
 
 
 
@@ -28,30 +29,56 @@ public class ConfirmOnTangle {
 
 	Map<IotaAddress, ExpectationAndResult> toBeConfirmed = new HashMap<IotaAddress, ExpectationAndResult>();
 
-	
-	public synchronized void updateFromTangle() {
-		if (!toBeConfirmed.isEmpty()) {
-			try {
-
-				List<IotaAddress> iotaAddresses = new ArrayList<IotaAddress>(toBeConfirmed.size());
-				toBeConfirmed.forEach((a, b) -> iotaAddresses.add(a));
-
-				GetBalancesResponse response = api.getBalances(100, IotaAddress.asStringList_getAddress(iotaAddresses));
-
-				String balances[] = response.getBalances();
+	private volatile Consumer<IotaAddress> confirmationListener;
 
-				for (int i = 0; i < balances.length; i++) {
-					IotaAddress addr = iotaAddresses.get(i);
-					ExpectationAndResult e = toBeConfirmed.get(addr);
-					
-					e.confirmed =  Long.parseLong(balances[i]) == e.expectedValue;
-				}
+	/**
+	 * Pulls the balances by the TangleGateway, the confirmationListener is called for each newly confirmed address.
+	 * 
+	 * @return completes when the pulled balances are compared
+	 */
+	public CompletableFuture<Void> updateFromTangle() {
+		List<IotaAddress> iotaAddresses;
+		synchronized (this) {
+			iotaAddresses = new ArrayList<IotaAddress>(toBeConfirmed.keySet());
+		}
+		if (iotaAddresses.isEmpty())
+			return CompletableFuture.completedFuture(null);
 
-			} catch (Exception e) {
-				// TODO Auto-generated catch block
+		return gateway.getBalances(IotaAddress.asStringList_getAddress(iotaAddresses)).handle((balances, e) -> {
+			if (e != null) {
 				e.printStackTrace();
+				return null;
 			}
+			Consumer<IotaAddress> listener = confirmationListener;
+			List<IotaAddress> newlyConfirmed = compare(iotaAddresses, balances);
+			if (listener != null)
+				newlyConfirmed.forEach(listener);
+			return null;
+		});
+	}
+
+	/**
+	 * Sets the consumer called for newly confirmed addresses.
+	 */
+	public void setConfirmationListener(Consumer<IotaAddress> confirmationListener) {
+		this.confirmationListener = confirmationListener;
+	}
+
+	private synchronized List<IotaAddress> compare(List<IotaAddress> iotaAddresses, long[] balances) {
+		List<IotaAddress> newlyConfirmed = new ArrayList<IotaAddress>();
+		for (int i = 0; i < balances.length; i++) {
+			IotaAddress addr = iotaAddresses.get(i);
+			ExpectationAndResult e = toBeConfirmed.get(addr);
+			// removed while the request was pending
+			if (e == null)
+				continue;
+
+			boolean confirmed = balances[i] == e.expectedValue;
+			if (confirmed && !e.confirmed)
+				newlyConfirmed.add(addr);
+			e.confirmed = confirmed;
 		}
+		return newlyConfirmed;
 	}
 
 	
@@ -0,0 +1,70 @@
+package de.topocare.topocareXiota.iotaMachineWallet.tangleMonitoring;
+
+/**
+ * Streaming source of confirmed transactions, reporting them to ConfirmByInclusion as they arrive.
+ * <p>
+ * Messages use the format of the IRI ZMQ topic "sn" (confirmed transactions):<br>
+ * <code>sn &lt;milestoneIndex&gt; &lt;transactionHash&gt; &lt;address&gt; &lt;trunk&gt; &lt;branch&gt; &lt;bundleHash&gt;</code>
+ * <p>
+ * Polling by the IotaLoopTask stays active as fallback, e.g. while the feed is disconnected.
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public abstract class ConfirmationFeed {
+
+	/**
+	 * Topic of confirmed transactions.
+	 */
+	public static final String TOPIC = "sn";
+
+	protected ConfirmByInclusion confirmByInclusion;
+
+	private volatile long messages = 0;
+	private volatile long lastMessageMillis = 0;
+
+	/**
+	 * Starts receiving, confirmed tails are reported to confirmByInclusion.
+	 */
+	public void start(ConfirmByInclusion confirmByInclusion) {
+		this.confirmByInclusion = confirmByInclusion;
+		startFeed();
+	}
+
+	/**
+	 * Starts the thread receiving messages and calling handleMessage.
+	 */
+	protected abstract void startFeed();
+
+	/**
+	 * Stops receiving.
+	 */
+	public abstract void stop();
+
+	/**
+	 * Parses a message of the feed, a confirmed transaction is reported to confirmByInclusion.
+	 */
+	protected void handleMessage(String message) {
+		if (message == null)
+			return;
+		String[] parts = message.split(" ");
+		if (parts.length < 3 || !TOPIC.equals(parts[0]))
+			return;
+		messages++;
+		lastMessageMillis = System.currentTimeMillis();
+		confirmByInclusion.confirmTail(parts[2]);
+	}
+
+	/**
+	 * @return number of confirmed transactions received
+	 */
+	public long getMessages() {
+		return messages;
+	}
+
+	/**
+	 * @return seconds since the last message, -1 if none received
+	 */
+	public long getSecondsSinceLastMessage() {
+		return lastMessageMillis == 0 ? -1 : (System.currentTimeMillis() - lastMessageMillis) / 1000;
+	}
+}
@@ -2,10 +2,10 @@ package de.topocare.topocareXiota.iotaMachineWallet.tangleMonitoring;
 
 import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.*;
 
-import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import de.topocare.topocareXiota.iotaMachineWallet.IotaMachineWalletCore;
-import de.topocare.topocareXiota.iotaMachineWallet.tangleTransactions.TangleTransaction;
 
 /**
  * 
@@ -29,32 +29,30 @@ public class IotaLoopTask implements Runnable {
 	public void run() {
 
 		// pull receiving address balances
-		if (core.receivingPool.updateFromTangle())
-			core.stateUpdate();
-
-		// check for confirmed transaction-bundles
-		core.transactionManager.confirmOnTangle.updateFromTangle();
-
-		// check TangleTransactions using data of step before
-		synchronized (core.transactionManager.transactionsAtConfirmation) {
-			for (Iterator<TangleTransaction> i = core.transactionManager.transactionsAtConfirmation.listIterator(); i
-					.hasNext();) {
-				if (i.next().checkTransaction()) {
-					i.remove();
-					core.transactionManager.transsactionCounterAtConfirmation.decrement();
-				}
-			}
+		CompletableFuture<Void> receiving = core.receivingPool.updateFromTangle().thenAccept(changes -> {
+			if (changes)
+				core.stateUpdate();
+		});
+
+		// check for confirmed transaction-bundles, confirmed TangleTransactions are committed by the TransactionManager
+		// (deadlines for promotion/reattachment are handled by its HashedTimerWheel)
+		CompletableFuture<Void> byReference = core.transactionManager.confirmOnTangle.updateFromTangle();
+		CompletableFuture<Void> byInclusion = core.transactionManager.confirmByInclusion.updateFromTangle();
+
+		// the requests run concurrently, the next run starts after all are done
+		try {
+			CompletableFuture.allOf(receiving, byReference, byInclusion).join();
+		} catch (CompletionException e) {
+			e.printStackTrace();
 		}
 
-		// Manage production units
-		if (core.productionPool.getExpectedAddressCount() < productionPoolLowerBorder)
-			if (core.useablePool.getBalance() + core.receivingPool.getAvailableBalance() >= productionUnitSize) {
-				int unitsToCreate = (int) java.lang.Math.min(
-						(core.useablePool.getBalance() + core.receivingPool.getAvailableBalance()) / productionUnitSize,
-						productionPoolUpperBorder - core.productionPool.getExpectedAddressCount());
-				if (unitsToCreate > 0)
-					core.transactionFactory.spreadToUnits(unitsToCreate);
-			}
+		// Manage production units, timed and sized by the consumption rate (RefillPlanner)
+		long affordableUnits = (core.useablePool.getBalance() + core.receivingPool.getAvailableBalance())
+				/ productionUnitSize;
+		int unitsToCreate = core.transactionManager.refillPlanner
+				.unitsToSpread(core.productionPool.getExpectedAddressCount(), affordableUnits);
+		if (unitsToCreate > 0)
+			core.transactionFactory.spreadToUnits(unitsToCreate);
 
 	}
 
@@ -0,0 +1,66 @@
+package de.topocare.topocareXiota.iotaMachineWallet.tangleMonitoring;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local stand-in for a node feed, for testing without a ZMQ-enabled node.
+ * <p>
+ * Every tail registered at ConfirmByInclusion is reported as confirmed after a fixed delay, using the same message
+ * format and parsing as the real feed. Nothing is checked on the tangle, so it must never run against a real network:
+ * PropertiesImport only creates it with offlineTesting = true, and a warning is printed when it is started.
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public class SimulatedConfirmationFeed extends ConfirmationFeed {
+
+	private long delayMillis;
+	private long milestoneIndex = 0;
+	private Map<String, Long> firstSeen = new HashMap<String, Long>();
+	private ScheduledExecutorService simulation;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param delaySeconds time from the registration of a tail until it is reported as confirmed
+	 */
+	public SimulatedConfirmationFeed(int delaySeconds) {
+		this.delayMillis = delaySeconds * 1000L;
+	}
+
+	@Override
+	protected void startFeed() {
+		System.err.println("**************************************************************************");
+		System.err.println("WARNING: SimulatedConfirmationFeed active, EVERY bundle is reported as");
+		System.err.println("confirmed after " + delayMillis / 1000 + " s without checking the tangle. Offline testing only!");
+		System.err.println("**************************************************************************");
+		simulation = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "SimulatedConfirmationFeed");
+			t.setDaemon(true);
+			return t;
+		});
+		simulation.scheduleWithFixedDelay(() -> tick(), 1, 1, TimeUnit.SECONDS);
+	}
+
+	private void tick() {
+		long now = System.currentTimeMillis();
+		Map<String, Long> seen = new HashMap<String, Long>();
+		for (String tail : confirmByInclusion.getTails()) {
+			long since = firstSeen.getOrDefault(tail, now);
+			if (now - since >= delayMillis)
+				handleMessage(TOPIC + " " + (++milestoneIndex) + " " + tail + " SIMULATED SIMULATED SIMULATED SIMULATED");
+			else
+				seen.put(tail, since);
+		}
+		firstSeen = seen;
+	}
+
+	@Override
+	public void stop() {
+		if (simulation != null)
+			simulation.shutdownNow();
+	}
+}
@@ -0,0 +1,63 @@
+package de.topocare.topocareXiota.iotaMachineWallet.tangleMonitoring;
+
+import java.nio.charset.StandardCharsets;
+
+import org.zeromq.ZMQ;
+
+/**
+ * ConfirmationFeed subscribing to the ZMQ topic "sn" of an IRI node.
+ * <p>
+ * The node must run with ZMQ enabled (--zmq-enabled), the endpoint is e.g. tcp://localhost:5556. ZMQ reconnects on
+ * its own, the receiving thread runs until stop().
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public class ZmqConfirmationFeed extends ConfirmationFeed {
+
+	private String endpoint;
+	private volatile boolean running = false;
+	private Thread receiver;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param endpoint ZMQ endpoint of the node, e.g. tcp://localhost:5556
+	 */
+	public ZmqConfirmationFeed(String endpoint) {
+		this.endpoint = endpoint;
+	}
+
+	@Override
+	protected void startFeed() {
+		running = true;
+		receiver = new Thread(() -> receive(), "ZmqConfirmationFeed");
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	private void receive() {
+		ZMQ.Context context = ZMQ.context(1);
+		ZMQ.Socket socket = context.socket(ZMQ.SUB);
+		try {
+			socket.setReceiveTimeOut(1000);
+			socket.connect(endpoint);
+			socket.subscribe((TOPIC + " ").getBytes(StandardCharsets.US_ASCII));
+			System.out.println("ConfirmationFeed connected to " + endpoint);
+			while (running) {
+				try {
+					handleMessage(socket.recvStr());
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		} finally {
+			socket.close();
+			context.term();
+		}
+	}
+
+	@Override
+	public void stop() {
+		running = false;
+	}
+}
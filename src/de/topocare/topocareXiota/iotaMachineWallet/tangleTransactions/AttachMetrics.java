@@ -0,0 +1,61 @@
+package de.topocare.topocareXiota.iotaMachineWallet.tangleTransactions;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the staged attachment (see StagedAttach), since program start.
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public class AttachMetrics {
+
+	/**
+	 * Bundles signed (prepareTransfers), and the time needed for it.
+	 */
+	public final AtomicLong signed = new AtomicLong();
+	public final AtomicLong signMillis = new AtomicLong();
+
+	/**
+	 * Attachments started and finished successfully.
+	 */
+	public final AtomicLong attachments = new AtomicLong();
+	public final AtomicLong attached = new AtomicLong();
+
+	/**
+	 * Tip selections (getTransactionsToApprove) and the failed ones.
+	 */
+	public final AtomicLong tipSelections = new AtomicLong();
+	public final AtomicLong tipSelectionErrors = new AtomicLong();
+
+	/**
+	 * Tips found inconsistent before PoW (no PoW lost) and after PoW (PoW lost). Failed consistency checks count as
+	 * stale too, and are counted in consistencyErrors.
+	 */
+	public final AtomicLong staleBeforePow = new AtomicLong();
+	public final AtomicLong staleAfterPow = new AtomicLong();
+	public final AtomicLong consistencyErrors = new AtomicLong();
+
+	/**
+	 * Time spent in PoW, in total and for attachments thrown away.
+	 */
+	public final AtomicLong powMillis = new AtomicLong();
+	public final AtomicLong wastedPowMillis = new AtomicLong();
+
+	/**
+	 * @return average number of tip selections per attachment
+	 */
+	public double getAttemptsPerAttachment() {
+		long count = attachments.get();
+		return count == 0 ? 0 : (double) tipSelections.get() / count;
+	}
+
+	@Override
+	public String toString() {
+		return " Attach: " + attached + " of " + attachments + "   tip selections: " + tipSelections + " ("
+				+ String.format("%.2f", getAttemptsPerAttachment()) + "/attach, " + tipSelectionErrors + " failed)\n"
+				+ "  stale tips: " + staleBeforePow + " before PoW, " + staleAfterPow + " after PoW ("
+				+ consistencyErrors + " checks failed)   PoW: "
+				+ powMillis + " ms (wasted: " + wastedPowMillis + " ms)   signing: " + signMillis + " ms for "
+				+ signed + " bundles";
+	}
+}
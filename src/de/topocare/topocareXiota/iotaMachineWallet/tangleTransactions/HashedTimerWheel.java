@@ -0,0 +1,124 @@
+package de.topocare.topocareXiota.iotaMachineWallet.tangleTransactions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timer wheel for deadlines keyed by an object (one deadline per key).
+ * <p>
+ * The wheel has wheelSize slots of tickMillis each. A deadline is put into the slot it expires in, with the number
+ * of full rounds of the wheel left. Each tick only visits the entries of one slot, so the cost is bound by the
+ * deadlines in that slot, not by all scheduled ones. Scheduling and cancelling are O(1).
+ * <p>
+ * Expired keys are passed to the consumer on the thread of the wheel, outside of its lock.
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public class HashedTimerWheel<K> {
+
+	private final long tickMillis;
+	private final List<Set<Entry<K>>> slots;
+	private final Map<K, Entry<K>> entries = new HashMap<K, Entry<K>>();
+	private final Consumer<K> onExpired;
+
+	private long tick = 0;
+	private ScheduledExecutorService ticker;
+
+	/**
+	 * Constructor, the wheel starts ticking at once.
+	 *
+	 * @param tickMillis duration of one slot
+	 * @param wheelSize  number of slots
+	 * @param onExpired  called with the key of each expired deadline
+	 */
+	public HashedTimerWheel(long tickMillis, int wheelSize, Consumer<K> onExpired) {
+		this.tickMillis = tickMillis;
+		this.onExpired = onExpired;
+		slots = new ArrayList<Set<Entry<K>>>(wheelSize);
+		for (int i = 0; i < wheelSize; i++)
+			slots.add(new LinkedHashSet<Entry<K>>());
+
+		ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "HashedTimerWheel");
+			t.setDaemon(true);
+			return t;
+		});
+		ticker.scheduleAtFixedRate(() -> {
+			try {
+				advance();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Schedules the deadline of a key, replacing a previous one.
+	 *
+	 * @param key         the key
+	 * @param delayMillis time until the deadline expires
+	 */
+	public synchronized void schedule(K key, long delayMillis) {
+		cancel(key);
+		long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+		Entry<K> entry = new Entry<K>(key, (int) ((tick + ticks) % slots.size()), (ticks - 1) / slots.size());
+		slots.get(entry.slot).add(entry);
+		entries.put(key, entry);
+	}
+
+	/**
+	 * Removes the deadline of a key, if any.
+	 */
+	public synchronized void cancel(K key) {
+		Entry<K> entry = entries.remove(key);
+		if (entry != null)
+			slots.get(entry.slot).remove(entry);
+	}
+
+	/**
+	 * @return number of scheduled deadlines
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	// moves the wheel one slot ahead, passing expired keys to the consumer
+	private void advance() {
+		List<K> expired = new ArrayList<K>();
+		synchronized (this) {
+			tick++;
+			for (Iterator<Entry<K>> i = slots.get((int) (tick % slots.size())).iterator(); i.hasNext();) {
+				Entry<K> entry = i.next();
+				if (entry.rounds > 0) {
+					entry.rounds--;
+					continue;
+				}
+				i.remove();
+				entries.remove(entry.key);
+				expired.add(entry.key);
+			}
+		}
+		expired.forEach(onExpired);
+	}
+
+	private static class Entry<K> {
+		final K key;
+		final int slot;
+		long rounds;
+
+		Entry(K key, int slot, long rounds) {
+			this.key = key;
+			this.slot = slot;
+			this.rounds = rounds;
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package de.topocare.topocareXiota.iotaMachineWallet.tangleTransactions;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Schedules the attachment (tip selection, proof of work, broadcast) of
+ * TangleTransactions on a fixed number of workers.
+ * <p>
+ * Waiting attachments are ordered by their Lane (payment before spread before
+ * promote before refund), first come first served within a lane.
+ * <p>
+ * Also provides the counters of transactions before and during the attachment
+ * and the time they waited for a worker.
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public class PowScheduler {
+
+	/**
+	 * Priority lanes of the scheduler, declared from highest to lowest priority.
+	 */
+	public enum Lane {
+		payment, spread, promote, refund
+	}
+
+	private ThreadPoolExecutor workers;
+	private AtomicLong sequence = new AtomicLong(0);
+	private AtomicInteger workerNumber = new AtomicInteger(0);
+
+	/**
+	 * called with old and new value of all transactions in preparation, queue or
+	 * attachment
+	 */
+	private BiConsumer<Integer, Integer> callOnUpdate;
+
+	private int preparing = 0;
+	private int queued = 0;
+	private int running = 0;
+
+	private long attachments = 0;
+	private long waitTimeTotalMillis = 0;
+	private long waitTimeMaxMillis = 0;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param workerCount  number of concurrent attachments, availableProcessors()
+	 *                     if < 1
+	 * @param callOnUpdate called with old and new value of getInFlight() on every
+	 *                     change
+	 */
+	public PowScheduler(int workerCount, BiConsumer<Integer, Integer> callOnUpdate) {
+		if (workerCount < 1)
+			workerCount = Runtime.getRuntime().availableProcessors();
+		this.callOnUpdate = callOnUpdate;
+		workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), r -> {
+					Thread t = new Thread(r, "PowWorker-" + workerNumber.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+	}
+
+	/**
+	 * Registers a transaction that will need an attachment later, called when it
+	 * is submitted.
+	 */
+	public void registerPreparing() {
+		update(1, 0, 0);
+	}
+
+	/**
+	 * Removes a transaction registered with registerPreparing() that will not
+	 * reach attach().
+	 */
+	public void unregisterPreparing() {
+		update(-1, 0, 0);
+	}
+
+	/**
+	 * Queues the attachment for a worker, the calling thread is not blocked. The
+	 * transaction must be registered with registerPreparing() before.
+	 * 
+	 * @param lane   priority of the attachment
+	 * @param attach the attachment itself
+	 * @return completes with the result of attach, or exceptionally with any
+	 *         exception thrown by attach
+	 */
+	public <T> CompletableFuture<T> attach(Lane lane, Callable<T> attach) {
+		update(-1, 1, 0);
+		long queuedAt = System.currentTimeMillis();
+
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		ScheduledAttach<T> task = new ScheduledAttach<T>(lane, sequence.getAndIncrement(), () -> {
+			long waited = System.currentTimeMillis() - queuedAt;
+			synchronized (this) {
+				attachments++;
+				waitTimeTotalMillis += waited;
+				if (waited > waitTimeMaxMillis)
+					waitTimeMaxMillis = waited;
+			}
+			update(0, -1, 1);
+			try {
+				result.complete(attach.call());
+			} catch (Throwable e) {
+				result.completeExceptionally(e);
+			} finally {
+				update(0, 0, -1);
+			}
+			return null;
+		});
+		workers.execute(task);
+		return result;
+	}
+
+	private void update(int preparingDelta, int queuedDelta, int runningDelta) {
+		int oldValue, newValue;
+		synchronized (this) {
+			oldValue = getInFlight();
+			preparing += preparingDelta;
+			queued += queuedDelta;
+			running += runningDelta;
+			newValue = getInFlight();
+		}
+		callOnUpdate.accept(oldValue, newValue);
+	}
+
+	/**
+	 * @return transactions submitted but not yet waiting for a worker (collecting
+	 *         addresses).
+	 */
+	public synchronized int getPreparing() {
+		return preparing;
+	}
+
+	/**
+	 * @return transactions waiting for a worker (queue depth).
+	 */
+	public synchronized int getQueueDepth() {
+		return queued;
+	}
+
+	/**
+	 * @return transactions currently in proof of work and attachment.
+	 */
+	public synchronized int getRunning() {
+		return running;
+	}
+
+	/**
+	 * @return sum of preparing, queued and running transactions.
+	 */
+	public synchronized int getInFlight() {
+		return preparing + queued + running;
+	}
+
+	/**
+	 * @return average time an attachment waited for a worker, in milliseconds.
+	 */
+	public synchronized long getAverageWaitMillis() {
+		if (attachments == 0)
+			return 0;
+		return waitTimeTotalMillis / attachments;
+	}
+
+	/**
+	 * @return longest time an attachment waited for a worker, in milliseconds.
+	 */
+	public synchronized long getMaxWaitMillis() {
+		return waitTimeMaxMillis;
+	}
+
+	/**
+	 * @return number of concurrent attachments.
+	 */
+	public int getWorkerCount() {
+		return workers.getMaximumPoolSize();
+	}
+
+	/**
+	 * Attachment in the queue of the workers, ordered by lane and sequence.
+	 */
+	private static class ScheduledAttach<T> extends FutureTask<T> implements Comparable<ScheduledAttach<?>> {
+		private Lane lane;
+		private long sequence;
+
+		ScheduledAttach(Lane lane, long sequence, Callable<T> callable) {
+			super(callable);
+			this.lane = lane;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(ScheduledAttach<?> other) {
+			if (lane != other.lane)
+				return lane.compareTo(other.lane);
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package de.topocare.topocareXiota.iotaMachineWallet.tangleTransactions;
+
+import java.util.Arrays;
+
+/**
+ * Chooses when an unconfirmed TangleTransaction is promoted (or reattached, if promotion is not possible) and
+ * collects statistics on confirmations.
+ * <p>
+ * The first deadline after the attachment is the learned percentile of the observed times to confirm, so bundles
+ * confirming as usual are not promoted at all. Every further deadline is the previous one multiplied by the backoff
+ * factor. All intervals are bound by minSeconds and maxSeconds. Before minSamples confirmations are observed,
+ * minSeconds is used as first interval.
+ * <p>
+ * Time-to-confirm, promotions and reattachments per bundle are recorded as histograms.
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public class PromotionPolicy {
+
+	private static final int SAMPLE_COUNT = 200;
+	private static final int MIN_SAMPLES = 10;
+
+	/**
+	 * Upper edges of the time-to-confirm buckets in seconds, the last bucket is open.
+	 */
+	public static final long[] CONFIRM_BUCKETS = { 30, 60, 120, 300, 600, 1200, 1800, 3600 };
+
+	/**
+	 * Upper edges of the buckets for promotions and reattachments per bundle, the last bucket is open.
+	 */
+	public static final long[] COUNT_BUCKETS = { 0, 1, 2, 3, 5, 10 };
+
+	private final long minSeconds;
+	private final long maxSeconds;
+	private final double backoffFactor;
+	private final int percentile;
+
+	// ring buffer of the latest times to confirm
+	private final long[] samples = new long[SAMPLE_COUNT];
+	private int sampleCount = 0;
+	private int nextSample = 0;
+
+	private final long[] confirmHistogram = new long[CONFIRM_BUCKETS.length + 1];
+	private final long[] promotionHistogram = new long[COUNT_BUCKETS.length + 1];
+	private final long[] reattachHistogram = new long[COUNT_BUCKETS.length + 1];
+
+	/**
+	 * Constructor.
+	 *
+	 * @param minSeconds    shortest interval until promotion
+	 * @param maxSeconds    longest interval until promotion
+	 * @param backoffFactor factor between two following intervals of a bundle
+	 * @param percentile    percentile of the observed times to confirm used as first interval
+	 */
+	public PromotionPolicy(long minSeconds, long maxSeconds, double backoffFactor, int percentile) {
+		this.minSeconds = minSeconds;
+		this.maxSeconds = Math.max(minSeconds, maxSeconds);
+		this.backoffFactor = backoffFactor;
+		this.percentile = percentile;
+	}
+
+	/**
+	 * @param rounds number of promotions/reattachments of the bundle so far
+	 * @return time until the next promotion/reattachment of a bundle
+	 */
+	public synchronized long nextDelayMillis(int rounds) {
+		double seconds = firstIntervalSeconds() * Math.pow(backoffFactor, rounds);
+		return (long) Math.min(maxSeconds, Math.max(minSeconds, seconds)) * 1000;
+	}
+
+	/**
+	 * Records a confirmed bundle.
+	 *
+	 * @param secondsToConfirm time from the first attachment until the confirmation
+	 * @param promotions       number of promotions of the bundle
+	 * @param reattachments    number of reattachments of the bundle
+	 */
+	public synchronized void recordConfirmation(long secondsToConfirm, int promotions, int reattachments) {
+		samples[nextSample] = secondsToConfirm;
+		nextSample = (nextSample + 1) % SAMPLE_COUNT;
+		sampleCount = Math.min(sampleCount + 1, SAMPLE_COUNT);
+
+		confirmHistogram[bucket(CONFIRM_BUCKETS, secondsToConfirm)]++;
+		promotionHistogram[bucket(COUNT_BUCKETS, promotions)]++;
+		reattachHistogram[bucket(COUNT_BUCKETS, reattachments)]++;
+	}
+
+	/**
+	 * @return first interval after the attachment in seconds, learned from the observed times to confirm
+	 */
+	public synchronized long firstIntervalSeconds() {
+		if (sampleCount < MIN_SAMPLES)
+			return minSeconds;
+		long[] sorted = Arrays.copyOf(samples, sampleCount);
+		Arrays.sort(sorted);
+		long learned = sorted[Math.min(sampleCount - 1, sampleCount * percentile / 100)];
+		return Math.min(maxSeconds, Math.max(minSeconds, learned));
+	}
+
+	public synchronized long[] getConfirmHistogram() {
+		return confirmHistogram.clone();
+	}
+
+	public synchronized long[] getPromotionHistogram() {
+		return promotionHistogram.clone();
+	}
+
+	public synchronized long[] getReattachHistogram() {
+		return reattachHistogram.clone();
+	}
+
+	/**
+	 * @return the histograms as text for the console
+	 */
+	public synchronized String histogramsToString() {
+		return "  time to confirm [s]: " + format(CONFIRM_BUCKETS, confirmHistogram) + "\n"
+				+ "  promotions/bundle:   " + format(COUNT_BUCKETS, promotionHistogram) + "\n"
+				+ "  reattaches/bundle:   " + format(COUNT_BUCKETS, reattachHistogram) + "\n"
+				+ "  first interval: " + firstIntervalSeconds() + " s (" + sampleCount + " samples)";
+	}
+
+	private static int bucket(long[] edges, long value) {
+		for (int i = 0; i < edges.length; i++)
+			if (value <= edges[i])
+				return i;
+		return edges.length;
+	}
+
+	private static String format(long[] edges, long[] histogram) {
+		StringBuilder str = new StringBuilder();
+		for (int i = 0; i < histogram.length; i++) {
+			str.append(i < edges.length ? "<=" + edges[i] : ">" + edges[edges.length - 1]);
+			str.append(':').append(histogram[i]).append(' ');
+		}
+		return str.toString().trim();
+	}
+}
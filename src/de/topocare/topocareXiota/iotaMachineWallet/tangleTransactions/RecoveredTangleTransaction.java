@@ -0,0 +1,60 @@
+package de.topocare.topocareXiota.iotaMachineWallet.tangleTransactions;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import de.topocare.topocareXiota.iotaMachineWallet.address.IotaAddress;
+import de.topocare.topocareXiota.iotaMachineWallet.poolTransactions.PoolTransactionInput;
+import de.topocare.topocareXiota.iotaMachineWallet.poolTransactions.PoolTransactionTransfer;
+
+/**
+ * A TangleTransaction attached before a restart of the wallet, restored from the PoolJournal.
+ * <p>
+ * The bundle was signed and may already be on the tangle, so this TangleTransaction waits for the confirmation and
+ * commits the restored PoolTransactions, its inputs are never signed again. The attached transactions are not
+ * journaled, so it is not promoted but reattached from the journaled signed trytes when its deadline expires. Bundles
+ * journaled by older versions have only tail hashes and can only wait.
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public class RecoveredTangleTransaction extends TangleTransaction {
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param transactionManager The TransactionManager to manage this TangleTransaction.
+	 * @param journalId The id of the bundle in the PoolJournal.
+	 * @param inputs The restored PoolTransactions providing the funding.
+	 * @param outputs The restored PoolTransactions receiving the funding.
+	 * @param refForConfirmation The managed address used to confirm the bundle.
+	 * @param refValue The balance expected on refForConfirmation after confirmation.
+	 * @param signedTrytes The journaled signed trytes of the bundle, null if unknown.
+	 */
+	public RecoveredTangleTransaction(TransactionManager transactionManager, long journalId,
+			List<PoolTransactionInput> inputs, List<PoolTransactionTransfer> outputs, IotaAddress refForConfirmation,
+			long refValue, String[] signedTrytes) {
+		super(transactionManager);
+		this.journalId = journalId;
+		this.inputs.addAll(inputs);
+		this.outputs.addAll(outputs);
+		this.refForConfirmation = refForConfirmation;
+		this.refValue = refValue;
+		this.signedTrytes = signedTrytes;
+		this.attachTime_latest = LocalDateTime.now();
+	}
+
+	@Override
+	void collectAddresses() {
+		// restored, nothing to collect
+	}
+
+	@Override
+	void whenDone() {
+	}
+
+	@Override
+	PowScheduler.Lane getLane() {
+		return PowScheduler.Lane.promote;
+	}
+
+}
@@ -0,0 +1,133 @@
+package de.topocare.topocareXiota.iotaMachineWallet.tangleTransactions;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Plans the refill of the productionPool by TangleTransactionSpreadUnits from the consumption of units and the
+ * time a spread bundle needs until its units are available.
+ * <p>
+ * The consumption rate (units per second) is an exponentially weighted moving average over the unit payments, decaying
+ * with the time constant rateWindowSeconds, so it falls back to 0 while the machine is idle. The lead time is a moving
+ * average of the observed times from the submission of a spread bundle to its confirmation, multiplied by the safety
+ * factor. Before the first spread bundle is confirmed, the fallback (e.g. the learned time to confirm of the
+ * PromotionPolicy) is used.
+ * <p>
+ * A spread is due when the expected units fall below the reorder point: the lower border plus the units consumed
+ * during the lead time. It fills up to the reorder point plus the units consumed during another lead time, so the
+ * next spread is due about one lead time later. Without consumption it fills up to the upper border. Both are bound
+ * by the upper border.
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public class RefillPlanner {
+
+	private static final double LATENCY_WEIGHT = 0.2;
+
+	private final int lowerBorder;
+	private final int upperBorder;
+	private final double rateWindowSeconds;
+	private final double safetyFactor;
+	private final LongSupplier fallbackLeadSeconds;
+
+	// units per second at lastConsumption
+	private double rate = 0;
+	private long lastConsumption = 0;
+
+	private double latencySeconds = 0;
+	private long spreadsConfirmed = 0;
+	private long unitsConsumed = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param lowerBorder         units always kept in the productionPool
+	 * @param upperBorder         maximum of units in the productionPool
+	 * @param rateWindowSeconds   time constant of the consumption rate
+	 * @param safetyFactor        factor applied to the observed lead time
+	 * @param fallbackLeadSeconds lead time until a spread bundle was confirmed
+	 */
+	public RefillPlanner(int lowerBorder, int upperBorder, long rateWindowSeconds, double safetyFactor,
+			LongSupplier fallbackLeadSeconds) {
+		this.lowerBorder = lowerBorder;
+		this.upperBorder = Math.max(lowerBorder, upperBorder);
+		this.rateWindowSeconds = Math.max(1, rateWindowSeconds);
+		this.safetyFactor = safetyFactor;
+		this.fallbackLeadSeconds = fallbackLeadSeconds;
+	}
+
+	/**
+	 * Records units paid by the machine.
+	 */
+	public synchronized void recordConsumption(int units) {
+		long now = System.currentTimeMillis();
+		rate = rateAt(now) + units / rateWindowSeconds;
+		lastConsumption = now;
+		unitsConsumed += units;
+	}
+
+	/**
+	 * Records a confirmed spread bundle.
+	 *
+	 * @param seconds time from the submission of the bundle to its confirmation
+	 */
+	public synchronized void recordSpreadConfirmed(long seconds) {
+		spreadsConfirmed++;
+		latencySeconds = spreadsConfirmed == 1 ? seconds : latencySeconds + LATENCY_WEIGHT * (seconds - latencySeconds);
+	}
+
+	/**
+	 * @return units consumed per second, decayed to now
+	 */
+	public synchronized double getConsumptionRate() {
+		return rateAt(System.currentTimeMillis());
+	}
+
+	/**
+	 * @return time from the submission of a spread bundle until its units are available, including the safety factor
+	 */
+	public synchronized long getLeadSeconds() {
+		double seconds = spreadsConfirmed == 0 ? fallbackLeadSeconds.getAsLong() : latencySeconds;
+		return (long) Math.ceil(seconds * safetyFactor);
+	}
+
+	/**
+	 * @return expected units below which a spread is due
+	 */
+	public synchronized int getReorderPoint() {
+		return Math.min(upperBorder, lowerBorder + unitsDuringLead());
+	}
+
+	/**
+	 * Plans the next spread.
+	 *
+	 * @param expectedUnits   units in the productionPool, including the ones of spread bundles not yet confirmed
+	 * @param affordableUnits units the useable- and receivingPool can fund
+	 * @return units to spread now, 0 if no spread is due
+	 */
+	public synchronized int unitsToSpread(int expectedUnits, long affordableUnits) {
+		int unitsDuringLead = unitsDuringLead();
+		int reorderPoint = Math.min(upperBorder, lowerBorder + unitsDuringLead);
+		if (expectedUnits >= reorderPoint)
+			return 0;
+		int orderUpTo = unitsDuringLead == 0 ? upperBorder : Math.min(upperBorder, reorderPoint + unitsDuringLead);
+		return (int) Math.max(0, Math.min(affordableUnits, orderUpTo - expectedUnits));
+	}
+
+	private int unitsDuringLead() {
+		return (int) Math.ceil(rateAt(System.currentTimeMillis()) * getLeadSeconds());
+	}
+
+	private double rateAt(long now) {
+		if (lastConsumption == 0)
+			return 0;
+		return rate * Math.exp(-(now - lastConsumption) / 1000.0 / rateWindowSeconds);
+	}
+
+	@Override
+	public synchronized String toString() {
+		int reorderPoint = getReorderPoint();
+		return "  consumption: " + String.format("%.2f", getConsumptionRate() * 60) + " units/min  lead: "
+				+ getLeadSeconds() + " s (" + spreadsConfirmed + " spreads)  reorder point: " + reorderPoint
+				+ (reorderPoint == upperBorder ? " [upper border reached]" : "") + "  units consumed: " + unitsConsumed;
+	}
+}
@@ -0,0 +1,121 @@
+package de.topocare.topocareXiota.iotaMachineWallet.tangleTransactions;
+
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import de.topocare.topocareXiota.iotaMachineWallet.TangleGateway;
+import jota.dto.response.GetTransactionsToApproveResponse;
+import jota.model.Transaction;
+
+/**
+ * Attaches signed bundle trytes to the tangle in stages: tip selection, freshness check, PoW (attachToTangle),
+ * freshness check, store and broadcast.
+ * <p>
+ * Signing (prepareTransfers) is done once before, outside of the PoW slot. If tip selection fails or the tips are
+ * found inconsistent, only the tip selection is repeated (with increasing depth, up to maxDepth), the signed trytes
+ * are kept. Tips found inconsistent after PoW are not broadcast, the attachment is repeated with new tips. A failed
+ * consistency check counts as inconsistent, the tips are not used.
+ * <p>
+ * The node requests of one try (tips, consistency, broadcast) are pinned to one node by the TangleGateway, the next
+ * try pins the best node again.
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+class StagedAttach {
+
+	/**
+	 * Signs the bundle once, by the TangleGateway.
+	 *
+	 * @return completes with the signed trytes, in the order expected by attachToTangle, or exceptionally if the
+	 *         bundle can't be signed
+	 */
+	static CompletableFuture<String[]> prepare(List<jota.model.Transfer> transfers, List<jota.model.Input> inputs,
+			AttachMetrics metrics) {
+		long start = System.currentTimeMillis();
+		return gateway.prepareTransfers(seed, security, transfers, inputs).thenApply(trytes -> {
+			metrics.signMillis.addAndGet(System.currentTimeMillis() - start);
+			metrics.signed.incrementAndGet();
+			return trytes.toArray(new String[trytes.size()]);
+		});
+	}
+
+	/**
+	 * Attaches signed trytes, retrying only the tip selection.
+	 *
+	 * @return the attached transactions, null if no attachment succeeded up to maxDepth
+	 */
+	static List<Transaction> attach(String[] trytes, AttachMetrics metrics) {
+		metrics.attachments.incrementAndGet();
+		for (int depthLocal = depth; depthLocal <= maxDepth; depthLocal++) {
+			TangleGateway.Pinned node = gateway.pin();
+
+			// tips
+			GetTransactionsToApproveResponse tips;
+			metrics.tipSelections.incrementAndGet();
+			try {
+				tips = node.getTransactionsToApprove(depthLocal).join();
+			} catch (CompletionException e) {
+				metrics.tipSelectionErrors.incrementAndGet();
+				System.err.println("Tip selection failed with depth:" + depthLocal);
+				continue;
+			}
+			if (!isConsistent(node, tips, metrics)) {
+				metrics.staleBeforePow.incrementAndGet();
+				continue;
+			}
+
+			// PoW
+			long powStart = System.currentTimeMillis();
+			String[] attached;
+			try {
+				attached = gateway.attachToTangle(tips.getTrunkTransaction(), tips.getBranchTransaction(),
+						minWeightMagnitude, trytes).join();
+			} catch (CompletionException e) {
+				metrics.wastedPowMillis.addAndGet(System.currentTimeMillis() - powStart);
+				System.err.println("attachToTangle failed with depth:" + depthLocal);
+				continue;
+			} finally {
+				metrics.powMillis.addAndGet(System.currentTimeMillis() - powStart);
+			}
+			if (!isConsistent(node, tips, metrics)) {
+				// tips got stale during PoW, don't broadcast a bundle that will never confirm
+				metrics.staleAfterPow.incrementAndGet();
+				metrics.wastedPowMillis.addAndGet(System.currentTimeMillis() - powStart);
+				continue;
+			}
+
+			// store and broadcast
+			try {
+				node.storeAndBroadcast(attached).join();
+			} catch (CompletionException e) {
+				e.printStackTrace();
+				continue;
+			}
+			metrics.attached.incrementAndGet();
+
+			List<Transaction> transactions = new ArrayList<Transaction>(attached.length);
+			for (String t : attached)
+				transactions.add(new Transaction(t));
+			return transactions;
+		}
+		System.err.println("Attachment failed up to maxDepth:" + maxDepth);
+		return null;
+	}
+
+	// tips are fresh if the node considers them consistent, an unknown state (failed check) is treated as stale, the
+	// next try pins the best node again
+	private static boolean isConsistent(TangleGateway.Pinned node, GetTransactionsToApproveResponse tips,
+			AttachMetrics metrics) {
+		try {
+			return node.checkConsistency(tips.getTrunkTransaction(), tips.getBranchTransaction()).join();
+		} catch (CompletionException e) {
+			metrics.consistencyErrors.incrementAndGet();
+			System.err.println("Consistency check failed on " + node + ": " + e.getCause());
+			return false;
+		}
+	}
+}
@@ -4,12 +4,13 @@ import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.*;
 
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
+import de.topocare.topocareXiota.iotaMachineWallet.TangleGateway;
 import de.topocare.topocareXiota.iotaMachineWallet.address.IotaAddress;
 import de.topocare.topocareXiota.iotaMachineWallet.poolTransactions.PoolTransactionInput;
 import de.topocare.topocareXiota.iotaMachineWallet.poolTransactions.PoolTransactionTransfer;
-import jota.dto.response.SendTransferResponse;
-import jota.error.ArgumentException;
 import jota.model.*;
 
 
@@ -18,31 +19,40 @@ import jota.model.*;
 /**
  * Abstract core of an TangleTransaction (Transaction-Bundle on the Iota-tangle). 
  * <p>
- * Each TangleTransaction-Object will be used at three different points, by different threads:<br>
+ * The lifecycle is an asynchronous state machine (see State), each transition fires on the completion of the
+ * previous stage or on a timer, no thread waits for a TangleTransaction: <br>
  * external thread: <br>
- *  - just constructor with required data, should not block the thread for long <br>
- * ExecutionPool of the Transaction-Manager: <br>
- * 	- collect addresses and balances (as defined by specific sub-class) <br>
- *  - attach the transaction-bundle to the IOTA-tangle, including proof of work <br>
- * IotaLoopTask: <br>
- *  - checkTransaction() will be called to validate if transaction has been confirmed or needs to be promoted/reattached after a a specified time <br>
- *  - whenDone() if something else is needed after confirmation
+ *  - constructor with required data, TransactionManager.submit starts the lifecycle <br>
+ * collecting, on the ExecutionPool of the Transaction-Manager: <br>
+ * 	- collect addresses and balances (as defined by specific sub-class), after the stage returned by collect() <br>
+ * signing, attaching: <br>
+ *  - the bundle is signed once, then attached to the IOTA-tangle by a worker of the PowScheduler <br>
+ * awaitingConfirmation, TransactionManager (on confirmation or expired deadline): <br>
+ *  - checkConfirmation() will be called when the confirmation of the bundle was reported, commits the PoolTransactions <br>
+ *  - promoteOrReattachLater() if the deadline on the HashedTimerWheel expired without confirmation (promoting) <br>
+ * done: <br>
+ *  - whenDone() if something else is needed after confirmation <br>
+ * failed: <br>
+ *  - nothing to send or signing failed, the PoolTransactions are rolled back and whenAbandoned() is called
  * <p>
  *
  * @author Stefan Kuenne [info@topocare.de]
  */
-public abstract class TangleTransaction implements Runnable {
+public abstract class TangleTransaction {
 	public TransactionManager transactionManager;
 
 	public TangleTransaction(TransactionManager transactionManager) {
 		this.transactionManager = transactionManager;
 	}
 
-	
 	/**
-	 * Determines what the run() method does next.
+	 * States of the lifecycle of a TangleTransaction.
 	 */
-	private NextRun nextrun = NextRun.newAttach;
+	public enum State {
+		created, collecting, signing, attaching, awaitingConfirmation, promoting, done, failed
+	}
+
+	private State state = State.created;
 
 	
 
@@ -70,11 +80,26 @@ public abstract class TangleTransaction implements Runnable {
 	Map<PoolTransactionTransfer, String> tag = new HashMap<PoolTransactionTransfer, String>();
 
 	
-	//data for confirmation, promote and reattach
-	SendTransferResponse sendTransferResponse;
+	//data for confirmation, promote and reattach, attachment to reattachCount are guarded by this
+	/**
+	 * Transactions of the latest attachment of the bundle, null if not attached.
+	 */
+	List<Transaction> attachment;
+	/**
+	 * The signed trytes of the bundle, null if not signed.
+	 */
+	String[] signedTrytes;
 	IotaAddress refForConfirmation;
 	long refValue;
 	LocalDateTime attachTime_latest;
+	LocalDateTime attachTime_first;
+	int promotionCount = 0;
+	int reattachCount = 0;
+	
+	/**
+	 * Id of the bundle in the PoolJournal, 0 if not journaled.
+	 */
+	long journalId = 0;
 
 	
 	/**
@@ -96,37 +121,74 @@ public abstract class TangleTransaction implements Runnable {
 	 */
 	abstract void whenDone();
 
-	
 	/**
-	 * normally starts createTransactionsAndSend(), but also used for promotion or reattachment when needed.
+	 * The priority lane used for the attachment of this TangleTransaction in the PowScheduler.
 	 */
-	@Override
-	public void run() {
-		if (nextrun == NextRun.newAttach)
-			createTransactionsAndSend();
-		else if (nextrun == NextRun.promoteOrReattach)
-			promoteOrReattach();
-		else {
-			Error e = new Error("TangeTransaction.run without defined nextrun-state");
-			e.printStackTrace();
-		}
-		nextrun = NextRun.undefined;
+	abstract PowScheduler.Lane getLane();
+
+	/**
+	 * Called if the TangleTransaction failed before it was attached, after its PoolTransactions were rolled back.
+	 */
+	void whenAbandoned() {
 	}
 
-	// Transaction-Monitor-Functionality
-	boolean isConfirmed = false;
+	/**
+	 * The collecting stage, runs collectAddresses() on the executor. Overridden if collecting must wait for a
+	 * signal, example: TangleTransactionRefunding
+	 *
+	 * @return completes when the addresses are collected
+	 */
+	CompletableFuture<Void> collect(Executor executor) {
+		return CompletableFuture.runAsync(() -> collectAddresses(), executor);
+	}
 
 	/**
-	 * Attaches the transaction-bundles to the Iota-tangle, build from the data collected in collectAddresses()
+	 * Starts the lifecycle, called by the TransactionManager. Returns at once, all stages are chained on completions.
+	 *
+	 * @param executor runs the collecting stage
 	 */
-	private void createTransactionsAndSend() {
-		// register as pre-pow
-		// now in Transaction Manager
+	void start(Executor executor) {
+		transition(State.collecting);
+		collect(executor).thenCompose(v -> sign()).thenCompose(trytes -> attach(trytes)).whenComplete((attached, e) -> {
+			if (signedTrytes == null)
+				abandon(e);
+			else {
+				if (e != null)
+					e.printStackTrace();
+				attached(attached);
+			}
+		});
+	}
 
-		collectAddresses();
+	/**
+	 * @return the current state of the lifecycle
+	 */
+	public synchronized State getState() {
+		return state;
+	}
 
-		// prepare attach
+	/**
+	 * Moves to the next state, ignored once done or failed.
+	 *
+	 * @return false if ignored
+	 */
+	synchronized boolean transition(State next) {
+		if (state == State.done || state == State.failed)
+			return false;
+		transactionManager.transitioned(state, next);
+		state = next;
+		return true;
+	}
 
+	// Transaction-Monitor-Functionality
+	boolean isConfirmed = false;
+
+	/**
+	 * The signing stage, builds the bundle from the data collected in collectAddresses() and signs it once.
+	 *
+	 * @return completes with the signed trytes, null if there is nothing to send
+	 */
+	private CompletableFuture<String[]> sign() {
 		// get Input
 		List<Input> inputAPI = new ArrayList<Input>();
 		for (int pt = 0; pt < inputs.size(); pt++)
@@ -149,144 +211,217 @@ public abstract class TangleTransaction implements Runnable {
 
 			for (int i = 0; i < outputs.size(); i++) {
 				refForConfirmation = outputs.get(i).getManagedAddress();
-				refValue = refForConfirmation.getBalance();
-				if (refForConfirmation != null)
+				if (refForConfirmation != null) {
+					refValue = refForConfirmation.getBalance();
 					break;
+				}
 			}
 		}
-		// TODO what if still no address found?!
-
-			
-
-		// attach
-		synchronized (transactionManager.powLock) {
-			transactionManager.transactionCounterPreServer.decrement();
-			transactionManager.transactionCounterAtServer.increment();
-
-			try {
-				if (!inputAPI.isEmpty() && !outputAPI.isEmpty()) {
-					int depthLocal = depth;
-					boolean done = false;
-					// attach, retries for "random" "reference transaction is too old"-error
-					while (!done && depthLocal <= maxDepth) {
-						try {
-							sendTransferResponse = api.sendTransfer(seed, security, depthLocal, minWeightMagnitude,
-									outputAPI, inputAPI, null, false, false, null);
-
-							boolean allSuccessful = true;
-							Boolean successfully[] = sendTransferResponse.getSuccessfully();
-							if (successfully != null)
-								for (int i = 0; i < successfully.length; i++)
-									if (!successfully[i]) {
-										allSuccessful = false;
-										break;
-									}
-							if (!allSuccessful)
-								throw new Exception("Transaction not successful");
-
-							done = true;
-							attachTime_latest = LocalDateTime.now();
-						} catch (ArgumentException e) {
-							System.err.println("Transaction failed with depth:" + depthLocal);
-							if (depthLocal == maxDepth) // lastRetry
-							{
-								e.printStackTrace();
-							}
-
-						}
-						depthLocal++;
-					}
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
-			} finally {
-				transactionManager.transactionCounterAtServer.decrement();
+		// without a managed address the bundle can only be confirmed by the inclusion of its tail
+
+		if (inputAPI.isEmpty() || outputAPI.isEmpty())
+			return CompletableFuture.completedFuture(null);
+		transition(State.signing);
+		return StagedAttach.prepare(outputAPI, inputAPI, transactionManager.attachMetrics);
+	}
+
+	/**
+	 * The attaching stage: tips and PoW in the PowScheduler. The signed bundle is journaled and on disk before it is
+	 * handed to the PowScheduler.
+	 *
+	 * @return completes with the attached transactions, null if the attachment failed
+	 */
+	private CompletableFuture<List<Transaction>> attach(String[] trytes) {
+		if (trytes == null)
+			return CompletableFuture.completedFuture(null);
+		if (journal != null)
+			journalSigned(trytes);
+		synchronized (this) {
+			signedTrytes = trytes;
+		}
+		transition(State.attaching);
+		return transactionManager.powScheduler.attach(getLane(),
+				() -> StagedAttach.attach(trytes, transactionManager.attachMetrics));
+	}
+
+	/**
+	 * Moves to awaitingConfirmation. A bundle signed but not attached is attached again when its deadline expires.
+	 */
+	private void attached(List<Transaction> transactions) {
+		synchronized (this) {
+			attachment = transactions;
+			if (attachment != null) {
+				attachTime_latest = LocalDateTime.now();
+				attachTime_first = attachTime_latest;
 			}
 		}
+		if (transactions != null && journal != null && journalId != 0)
+			journal.recordTail(journalId, tailOf(transactions));
 
 		// register Expected values
-		transactionManager.confirmOnTangle.registerForConfirmation(refForConfirmation, refValue);
+		transactionManager.registerForConfirmation(this,
+				transactions != null ? Collections.singletonList(tailOf(transactions)) : Collections.emptyList());
+		transition(State.awaitingConfirmation);
+		transactionManager.awaitConfirmation(this);
+	}
 
-		transactionManager.transactionsAtConfirmation.add(this);
-		transactionManager.transsactionCounterAtConfirmation.increment();
+	/**
+	 * Ends a TangleTransaction that was never attached: nothing to send, or collecting/signing failed.
+	 */
+	private void abandon(Throwable e) {
+		if (e != null)
+			e.printStackTrace();
+		transactionManager.powScheduler.unregisterPreparing();
+		inputs.forEach(pt -> pt.rollback());
+		outputs.forEach(pt -> pt.rollback());
+		transition(State.failed);
+		whenAbandoned();
 	}
 
 	/**
-	 * checks if the transaction can be promoted or must be reattached
+	 * Records the signed bundle with its PoolTransactions in the PoolJournal and waits until it is on disk, so after
+	 * a restart its inputs are not signed again and it can be reattached and confirmed.
 	 */
-	private void promoteOrReattach() {
-		synchronized (transactionManager.powLock) {
-			transactionManager.transactionCounterPreServer.decrement();
-			transactionManager.transactionCounterAtServer.increment();
-
-			try {
-				Bundle bundle = new Bundle(sendTransferResponse.getTransactions(),
-						sendTransferResponse.getTransactions().size());
-				String tail = bundle.getTransactions().get(bundle.getLength() - 1).getHash();
-
-				if (api.checkConsistency(new String[] { tail }).getState()) {
-
-					api.promoteTransaction(tail, depth, minWeightMagnitude, bundle);
-					transactionManager.promotions.incrementAndGet();
-				} else {
-					api.replayBundle(tail, depth, minWeightMagnitude, null);
-					transactionManager.reattachments.incrementAndGet();
-				}
-				attachTime_latest = LocalDateTime.now();
-			} catch (Exception e) {
-				e.printStackTrace();
-			} finally {
-				transactionManager.transactionCounterAtServer.decrement();
+	private void journalSigned(String[] trytes) {
+		long[] transactionIds = new long[inputs.size() + outputs.size()];
+		int i = 0;
+		for (PoolTransactionInput input : inputs)
+			transactionIds[i++] = input.getJournalId();
+		for (PoolTransactionTransfer output : outputs)
+			transactionIds[i++] = output.getJournalId();
+
+		journalId = journal.nextId();
+		journal.recordSigned(journalId, refForConfirmation != null ? refForConfirmation.getKeyIndex() : -1, refValue,
+				transactionIds, trytes);
+	}
+
+	/**
+	 * @return hash of the tail transaction (currentIndex 0) of an attachment
+	 */
+	static String tailOf(List<Transaction> transactions) {
+		for (Transaction transaction : transactions)
+			if (transaction.getCurrentIndex() == 0)
+				return transaction.getHash();
+		return transactions.get(transactions.size() - 1).getHash();
+	}
 
+	/**
+	 * checks if the transaction can be promoted or must be reattached, run by a worker of the PowScheduler. The node
+	 * requests and the PoW are done without holding the monitor, only the results are stored under it.
+	 */
+	private Void promoteOrReattach() {
+		List<Transaction> current;
+		String[] trytes;
+		synchronized (this) {
+			current = attachment;
+			trytes = signedTrytes;
+		}
+
+		TangleGateway.Pinned node = gateway.pin();
+		if (current != null && node.checkConsistency(tailOf(current)).join()) {
+			Bundle bundle = new Bundle(current, current.size());
+			node.promoteTransaction(tailOf(current), depth, minWeightMagnitude, bundle).join();
+			synchronized (this) {
+				promotionCount++;
+				attachTime_latest = LocalDateTime.now();
 			}
+			transactionManager.promotions.incrementAndGet();
+		} else {
+			// reattach the signed trytes with new tips, like replayBundle, but keep the new tail for confirmation
+			if (current != null) {
+				trytes = new String[current.size()];
+				for (int i = 0; i < trytes.length; i++)
+					trytes[i] = current.get(i).toTrytes();
+			}
+			List<Transaction> reattached = StagedAttach.attach(trytes, transactionManager.attachMetrics);
+			if (reattached == null)
+				return null;
+			boolean firstAttachment;
+			synchronized (this) {
+				attachment = reattached;
+				attachTime_latest = LocalDateTime.now();
+				firstAttachment = attachTime_first == null;
+				if (firstAttachment)
+					attachTime_first = attachTime_latest;
+				else
+					reattachCount++;
+			}
+			String newTail = tailOf(reattached);
+			transactionManager.confirmByInclusion.registerTail(this, newTail);
+			if (journal != null && journalId != 0)
+				journal.recordTail(journalId, newTail);
+			if (!firstAttachment)
+				transactionManager.reattachments.incrementAndGet();
 		}
-		transactionManager.transactionsAtConfirmation.add(this);
-		transactionManager.transsactionCounterAtConfirmation.increment();
+		return null;
 	}
 
+	/**
+	 * @return promotions and reattachments done so far
+	 */
+	synchronized int getPromotionAndReattachCount() {
+		return promotionCount + reattachCount;
+	}
 
 	/**
 	 * Checks if the transaction-bundle was confirmed on the tangle.
 	 * If confirmed, then all used PoolTransactions are committed.
 	 * 
-	 * If false and a specific time has passed since attachment, then promote/reattach.
-	 * 
-	 * 
-	 * @return If the TangleTransaction can be removed from the List of transactions to be confirmed. This happens if it is confirmed or if it must be go back to the ThreadPool for a new Proof of work.
+	 * @return If the bundle is confirmed.
 	 */
-	public boolean checkTransaction() {
+	public synchronized boolean checkConfirmation() {
 		if (!isConfirmed) {
 			//only stays true if all checks are positive
 			Boolean nothingUnconfirmed = true;
 
-			// check ref-address
-			nothingUnconfirmed = transactionManager.confirmOnTangle.isConfirmed(refForConfirmation);
+			// check tails, else ref-address
+			if (transactionManager.confirmByInclusion.isRegistered(this))
+				nothingUnconfirmed = transactionManager.confirmByInclusion.isConfirmed(this);
+			else
+				nothingUnconfirmed = refForConfirmation != null
+						&& transactionManager.confirmOnTangle.isConfirmed(refForConfirmation);
 
-
-			
 			if (nothingUnconfirmed) {
 				inputs.forEach(e -> e.commit());
 				outputs.forEach(e -> e.commit());
 				isConfirmed = true;
+				transition(State.done);
+				if (attachTime_first != null)
+					transactionManager.promotionPolicy.recordConfirmation(
+							Duration.between(attachTime_first, LocalDateTime.now()).getSeconds(), promotionCount,
+							reattachCount);
+				if (journal != null && journalId != 0)
+					journal.recordBundleDone(journalId);
 				whenDone();
 			}
 
 		}
-		if (!isConfirmed)
-			if (attachTime_latest.isBefore(LocalDateTime.now().minusMinutes(promoteOrReattachAfterMinutes))) {
-				System.out.println("promoteOrReattach needed...");
-				nextrun = NextRun.promoteOrReattach;
-				transactionManager.submitIgnoreRefundingLock(this);
-				return true;
-			}
 		return isConfirmed;
 	}
 
 	/**
-	 * Determines what the run() method does next. See: nextRun
+	 * Moves to promoting, called when it was not confirmed in time. The promotion or reattachment is queued in the
+	 * PowScheduler, on its completion the TangleTransaction awaits the confirmation again.
+	 */
+	void promoteOrReattachLater() {
+		System.out.println("promoteOrReattach needed...");
+		if (!transition(State.promoting))
+			return;
+		transactionManager.powScheduler.registerPreparing();
+		transactionManager.powScheduler.attach(PowScheduler.Lane.promote, () -> promoteOrReattach())
+				.whenComplete((v, e) -> {
+					if (e != null)
+						e.printStackTrace();
+					transition(State.awaitingConfirmation);
+					transactionManager.awaitConfirmation(this);
+				});
+	}
+
+	/**
+	 * @return true if the bundle can be promoted or (re)attached
 	 */
-	private enum NextRun {
-		undefined, newAttach, promoteOrReattach
+	synchronized boolean canReattach() {
+		return attachment != null || signedTrytes != null;
 	}
 
 }
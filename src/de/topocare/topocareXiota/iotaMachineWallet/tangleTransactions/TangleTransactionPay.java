@@ -2,6 +2,9 @@ package de.topocare.topocareXiota.iotaMachineWallet.tangleTransactions;
 
 import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.productionUnitSize;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import de.topocare.topocareXiota.iotaMachineWallet.IotaMachineWalletCore;
 import de.topocare.topocareXiota.iotaMachineWallet.poolTransactions.PoolTransaction;
 import de.topocare.topocareXiota.iotaMachineWallet.poolTransactions.PoolTransactionTransfer;
@@ -11,14 +14,18 @@ import de.topocare.topocareXiota.iotaMachineWallet.pools.UnmanagedTransactionTar
 	
 
 /**
- * A TangleTransaction used to pay a single production unit to a UnmanagedTransactionTarget.
+ * A TangleTransaction used to pay one or more production units to a UnmanagedTransactionTarget.
+ * <p>
+ * Can be used as a batch: further units (and their messages) can be added with addUnits() until the TangleTransaction is submitted.
+ * The units of a batch are taken from the productionPool when they are added, so each added request is paid in full.
+ * All units are paid with a single value-transfer, each additional message is attached as a zero-value transfer to the same target.
  * 
  * @author Stefan Kuenne [info@topocare.de]
  */
 public class TangleTransactionPay extends TangleTransaction {
 
 	int amountInUnits;
-	String payment_message;
+	List<String> payment_messages = new ArrayList<String>();
 	
 	IotaAddressPool productionPool;
 	UnmanagedTransactionTarget paymentTarget;
@@ -35,31 +42,86 @@ public class TangleTransactionPay extends TangleTransaction {
 	public TangleTransactionPay(TransactionManager transactionManager, IotaAddressPool productionPool, UnmanagedTransactionTarget paymentTarget, int amountInUnits, String message)
 	{
 		super(transactionManager);
-		this.amountInUnits = amountInUnits;
 		
 		this.productionPool = productionPool;
 		this.paymentTarget = paymentTarget;
-		this.payment_message = message;
-		
+		this.amountInUnits = amountInUnits;
+		if (message != null)
+			payment_messages.add(message);
+	}
+	
+	/**
+	 * Constructor of a batch, starting with units already taken from the productionPool.
+	 * 
+	 * @param transactionManager The TransactionManager to run and manage this TangleTransaction.
+	 * @param productionPool The pool the production units were taken from.
+	 * @param paymentTarget The target where the production units are send.
+	 * @param units The PoolTransaction taking the units from the productionPool.
+	 * @param amountInUnits The number of units taken by units.
+	 * @param message The on the IOTA-Transaction.
+	 */
+	public TangleTransactionPay(TransactionManager transactionManager, IotaAddressPool productionPool, UnmanagedTransactionTarget paymentTarget, PoolTransaction units, int amountInUnits, String message)
+	{
+		this(transactionManager, productionPool, paymentTarget, amountInUnits, message);
+		this.inputs.add(units);
 	}
 	
 	/**
-	 * Collect the used data, will be run when this TangleTransaction has it's own thread.
+	 * Adds units already taken from the productionPool to this payment, only to be used before it is submitted to the TransactionManager.
+	 * 
+	 * @param units The PoolTransaction taking the units from the productionPool.
+	 * @param amountInUnits The number of units taken by units.
+	 * @param message The message for these units, null if none.
+	 */
+	synchronized void addUnits(PoolTransaction units, int amountInUnits, String message)
+	{
+		this.inputs.add(units);
+		this.amountInUnits += amountInUnits;
+		if (message != null)
+			payment_messages.add(message);
+	}
+	
+	/**
+	 * Returns the units already taken to the productionPool, if this payment was not accepted by the TransactionManager.
+	 */
+	synchronized void rollbackUnits()
+	{
+		inputs.forEach(pt -> pt.rollback());
+		inputs.clear();
+	}
+	
+	/**
+	 * @return The number of units paid by this TangleTransaction.
+	 */
+	public synchronized int getAmountInUnits()
+	{
+		return amountInUnits;
+	}
+	
+	/**
+	 * Collect the used data, run on the ExecutionPool of the TransactionManager (collecting stage).
 	 */
 	@Override
-	void collectAddresses() {
-		//take the money from the productionPool, if not possible cancel.
-		PoolTransaction input = productionPool.takeElements(amountInUnits);
-		if (input == null)
-			return;
-		this.inputs.add(input);
+	synchronized void collectAddresses() {
+		//take the money from the productionPool if not taken by a batch, if not possible cancel.
+		if (inputs.isEmpty()) {
+			PoolTransaction input = productionPool.takeElements(amountInUnits);
+			if (input == null)
+				return;
+			this.inputs.add(input);
+		}
 		
 		//give the payment to the paymentTarget
 		PoolTransactionTransfer target = paymentTarget.give(amountInUnits*productionUnitSize);
 		this.outputs.add(target);
 		
-		//add the message
-		message.put(target, payment_message);
+		//add the messages, first one on the value-transfer, others as zero-value transfers
+		for (int i = 0; i < payment_messages.size(); i++) {
+			PoolTransactionTransfer messageTarget = (i == 0) ? target : paymentTarget.give(0);
+			if (i > 0)
+				this.outputs.add(messageTarget);
+			message.put(messageTarget, payment_messages.get(i));
+		}
 		
 }
 
@@ -68,6 +130,9 @@ public class TangleTransactionPay extends TangleTransaction {
 		// not needed
 		
 	}
-	
 
+	@Override
+	PowScheduler.Lane getLane() {
+		return PowScheduler.Lane.payment;
+	}
 }
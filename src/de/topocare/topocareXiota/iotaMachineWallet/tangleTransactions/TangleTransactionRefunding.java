@@ -1,7 +1,12 @@
 package de.topocare.topocareXiota.iotaMachineWallet.tangleTransactions;
 
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.maxBundleInputs;
+
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import de.topocare.topocareXiota.iotaMachineWallet.IotaMachineWalletCore;
 import de.topocare.topocareXiota.iotaMachineWallet.poolTransactions.PoolTransaction;
@@ -11,14 +16,41 @@ import de.topocare.topocareXiota.iotaMachineWallet.pools.UnmanagedTransactionTar
 /**
  * A TangleTransaction sending the content of all pools to one
  * UnmanagedTransactionTarget.
+ * <p>
+ * If the pools hold more than maxBundleInputs (IotaConfig) addresses, the
+ * refund is split into several independent bundles of at most maxBundleInputs
+ * inputs. The further bundles are TangleTransactionRefunding objects of their
+ * own, run in parallel by the TransactionManager (signing and attachment), each
+ * with its own confirmation and pool commits. The refunding locks are removed
+ * when the last bundle of the refund is done.
+ * <p>
+ * A bundle failing before its attachment returns its inputs to the pools. When
+ * the last bundle is done, such funds are collected again by a new round of the
+ * refund, up to REFUND_ROUNDS rounds. After that the locks are removed and the
+ * remaining balance is reported.
+ * <p>
+ * Collecting starts on the drain signal of the TransactionManager, no thread
+ * waits for the other TangleTransactions to be done.
  *
  * @author Stefan Kuenne [info@topocare.de]
  */
 public class TangleTransactionRefunding extends TangleTransaction {
 
+	private static final int REFUND_ROUNDS = 3;
+
 	List<TransactionInputSource> sources;
 	UnmanagedTransactionTarget refundingTarget;
 
+	/**
+	 * Inputs of a further bundle of a split refund, null for the bundle collecting from the sources.
+	 */
+	private List<PoolTransaction> bundleInputs;
+
+	/**
+	 * The round of the refund this bundle belongs to, shared by all its bundles.
+	 */
+	private Round round;
+
 	/**
 	 * @param transactionManager The TransactionManager to run and manage this
 	 *                           TangleTransaction.
@@ -27,54 +59,160 @@ public class TangleTransactionRefunding extends TangleTransaction {
 	 */
 	public TangleTransactionRefunding(TransactionManager transactionManager, List<TransactionInputSource> sources,
 			UnmanagedTransactionTarget refundingTarget) {
+		this(transactionManager, sources, refundingTarget, 1);
+	}
+
+	// the bundle collecting from the sources in the given round
+	private TangleTransactionRefunding(TransactionManager transactionManager, List<TransactionInputSource> sources,
+			UnmanagedTransactionTarget refundingTarget, int round) {
+		super(transactionManager);
+		this.sources = sources;
+		this.refundingTarget = refundingTarget;
+		this.round = new Round(round);
+	}
+
+	// a further bundle of a split refund, with inputs already taken
+	private TangleTransactionRefunding(TransactionManager transactionManager, List<PoolTransaction> bundleInputs,
+			List<TransactionInputSource> sources, UnmanagedTransactionTarget refundingTarget, Round round) {
 		super(transactionManager);
+		this.bundleInputs = bundleInputs;
 		this.sources = sources;
 		this.refundingTarget = refundingTarget;
+		this.round = round;
 	}
 
 	/**
-	 * Collect the used data, will be run when this TangleTransaction has it's own
-	 * thread.
+	 * Sets the refundingLock, collecting starts on the drain signal of the
+	 * TransactionManager, when all other tasks are done.
 	 */
 	@Override
-	void collectAddresses() {
-		// wait for all other tasks to be done
+	CompletableFuture<Void> collect(Executor executor) {
+		if (bundleInputs != null)
+			return super.collect(executor);
 		transactionManager.setRefundingLock(true);
+		return transactionManager.whenDrained().thenRunAsync(() -> collectAddresses(), executor);
+	}
+
+	/**
+	 * Collect the used data, run on the ExecutionPool of the TransactionManager.
+	 */
+	@Override
+	void collectAddresses() {
+		if (bundleInputs != null) {
+			addInputs(bundleInputs);
+			return;
+		}
+
+		// PoolTransactions taken but not yet owned by a bundle, rolled back on failure
+		List<PoolTransaction> taken = new ArrayList<PoolTransaction>();
 		try {
-			while (!transactionManager.isRefundingNow()) {
-				try {
-					Thread.sleep(100);
-				} catch (Exception e) {
-				}
-			}
+			// collect all balances, in parts of at most maxBundleInputs addresses
+			for (int i = 0; i < sources.size(); i++)
+				taken.addAll(sources.get(i).takeAll(maxBundleInputs));
 
-			// collect all balances
-			long balance = 0;
+			List<List<PoolTransaction>> bundles = splitIntoBundles(taken);
+			if (bundles.isEmpty())
+				return;
 
-			PoolTransaction tmp;
-			for (int i = 0; i < sources.size(); i++) {
-				tmp = sources.get(i).takeAll();
-				if (tmp != null) {
-					inputs.add(tmp);
-					balance += tmp.balance;
-				}
+			// further bundles are signed and attached in parallel to this one
+			for (int i = 1; i < bundles.size(); i++) {
+				round.openBundles.incrementAndGet();
+				transactionManager.submitIgnoreRefundingLock(new TangleTransactionRefunding(transactionManager,
+						bundles.get(i), sources, refundingTarget, round));
+				taken.removeAll(bundles.get(i));
 			}
 
-			//define target
-			if (balance > 0)
-				outputs.add(refundingTarget.give(balance));
+			// rolled back by the abandonment of this bundle on failure
+			addInputs(bundles.get(0));
+			taken.clear();
+
+		} catch (RuntimeException e) {
+			if (!taken.isEmpty())
+				round.incomplete = true;
+			taken.forEach(pt -> pt.rollback());
+			throw e;
+		}
+	}
+
+	// adds the inputs and the output of their balance to the refundingTarget
+	private void addInputs(List<PoolTransaction> poolTransactions) {
+		long balance = 0;
+		for (PoolTransaction poolTransaction : poolTransactions) {
+			inputs.add(poolTransaction);
+			balance += poolTransaction.balance;
+		}
+
+		//define target
+		if (balance > 0)
+			outputs.add(refundingTarget.give(balance));
+	}
 
-		} catch (Exception e) {
-			e.printStackTrace();
+	// groups the PoolTransactions into bundles of at most maxBundleInputs addresses, in order
+	private static List<List<PoolTransaction>> splitIntoBundles(List<PoolTransaction> poolTransactions) {
+		List<List<PoolTransaction>> bundles = new ArrayList<List<PoolTransaction>>();
+		List<PoolTransaction> bundle = null;
+		int addressCount = 0;
+		for (PoolTransaction poolTransaction : poolTransactions) {
+			if (bundle == null
+					|| (maxBundleInputs > 0 && addressCount + poolTransaction.addressCount > maxBundleInputs)) {
+				bundle = new ArrayList<PoolTransaction>();
+				bundles.add(bundle);
+				addressCount = 0;
+			}
+			bundle.add(poolTransaction);
+			addressCount += poolTransaction.addressCount;
 		}
+		return bundles;
+	}
+
+	@Override
+	void whenAbandoned() {
+		// nothing to refund, or the bundle failed before attachment and its inputs are back in the pools
+		if (!inputs.isEmpty())
+			round.incomplete = true;
+		whenDone();
 	}
 
 	@Override
 	void whenDone() {
+		// the last bundle of the round removes the locks, or starts the next round
+		if (round.openBundles.decrementAndGet() > 0)
+			return;
+
+		if (round.incomplete) {
+			if (round.number < REFUND_ROUNDS) {
+				System.err.println("Refund round " + round.number + " incomplete, collecting the remaining balance again");
+				transactionManager.submitIgnoreRefundingLock(
+						new TangleTransactionRefunding(transactionManager, sources, refundingTarget, round.number + 1));
+				return;
+			}
+			System.err.println("Refund incomplete after " + REFUND_ROUNDS
+					+ " rounds, the remaining balance stays in the pools");
+		}
+
 		//remove the locks
 		transactionManager.setRefundingLock(false);
 		transactionManager.setRefundingNow(false);
 
 	}
 
+	/**
+	 * The bundles of one round of a refund.
+	 */
+	private static class Round {
+		final int number;
+		// bundles of the round not done yet
+		final AtomicInteger openBundles = new AtomicInteger(1);
+		// set if a bundle returned its inputs to the pools
+		volatile boolean incomplete = false;
+
+		Round(int number) {
+			this.number = number;
+		}
+	}
+
+	@Override
+	PowScheduler.Lane getLane() {
+		return PowScheduler.Lane.refund;
+	}
 }
@@ -14,6 +14,7 @@ public class TangleTransactionSpreadUnits extends TangleTransaction {
 
 	int amountInUnits;
 	long balanceTakenFromInput = 0;
+	long submitted = System.currentTimeMillis();
 
 	ReceivingAddressPool receivingPool;
 	IotaAddressPool useablePool;
@@ -39,7 +40,7 @@ public class TangleTransactionSpreadUnits extends TangleTransaction {
 	}
 
 	/**
-	 * Collect the used data, will be run when this TangleTransaction has it's own thread.
+	 * Collect the used data, run on the ExecutionPool of the TransactionManager (collecting stage).
 	 */
 	@Override
 	void collectAddresses() {
@@ -78,7 +79,11 @@ public class TangleTransactionSpreadUnits extends TangleTransaction {
 
 	@Override
 	void whenDone() {
-		// not needed
+		transactionManager.refillPlanner.recordSpreadConfirmed((System.currentTimeMillis() - submitted) / 1000);
+	}
 
+	@Override
+	PowScheduler.Lane getLane() {
+		return PowScheduler.Lane.spread;
 	}
 }
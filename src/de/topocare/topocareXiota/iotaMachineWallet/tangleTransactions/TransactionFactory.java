@@ -1,14 +1,27 @@
 package de.topocare.topocareXiota.iotaMachineWallet.tangleTransactions;
 
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.paymentBatchMaxUnits;
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.paymentBatchWindowSeconds;
+
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import de.topocare.topocareXiota.iotaMachineWallet.IotaMachineWalletCore;
+import de.topocare.topocareXiota.iotaMachineWallet.poolTransactions.PoolTransaction;
 import de.topocare.topocareXiota.iotaMachineWallet.pools.TransactionInputSource;
 
 
 /**
  * Creates new TangleTransactions as needed. Should be integrated in a frontend class later.
+ * <p>
+ * If paymentBatchMaxUnits (IotaConfig) is greater than 1, unit payments are collected in one pending TangleTransactionPay,
+ * which is submitted when paymentBatchMaxUnits is reached or paymentBatchWindowSeconds have passed since its first unit.
+ * The units of each request are taken from the productionPool at once, a request without enough units is not paid and reported.
+ * While the refundingLock is set, no units are taken, and a batch not accepted by the TransactionManager returns its units to the productionPool.
  * 
  * @author Stefan Kuenne [info@topocare.de]
  */
@@ -16,6 +29,13 @@ public class TransactionFactory {
 	IotaMachineWalletCore core;
 	TransactionManager transactionManager;
 
+	/**
+	 * The payment currently collecting units, null if none.
+	 */
+	private TangleTransactionPay pendingPayment;
+	private ScheduledFuture<?> pendingPaymentTimeout;
+	private ScheduledExecutorService batchTimer;
+
 	public TransactionFactory(IotaMachineWalletCore core, TransactionManager transactionManager) {
 		this.core = core;
 		this.transactionManager = transactionManager;
@@ -28,8 +48,63 @@ public class TransactionFactory {
 	
 	public synchronized void SpendUnits(int amount, String message)
 	{
-		TangleTransactionPay task = new TangleTransactionPay(transactionManager, core.productionPool, core.paymentTarget, amount, message);
-		transactionManager.submit(task);
+		transactionManager.refillPlanner.recordConsumption(amount);
+		if (paymentBatchMaxUnits <= 1) {
+			TangleTransactionPay task = new TangleTransactionPay(transactionManager, core.productionPool, core.paymentTarget, amount, message);
+			transactionManager.submit(task);
+			return;
+		}
+
+		// the refund collects the productionPool, units taken now would never be paid or returned
+		if (transactionManager.isRefundingLock()) {
+			System.err.println("SpendUnits: refunding, " + amount + " units not paid");
+			return;
+		}
+
+		PoolTransaction units = core.productionPool.takeElements(amount);
+		if (units == null) {
+			System.err.println("SpendUnits: " + amount + " units not available in the productionPool, not paid");
+			return;
+		}
+
+		if (pendingPayment == null) {
+			pendingPayment = new TangleTransactionPay(transactionManager, core.productionPool, core.paymentTarget, units, amount, message);
+			if (batchTimer == null)
+				batchTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+					Thread t = new Thread(r, "PaymentBatch");
+					t.setDaemon(true);
+					return t;
+				});
+			TangleTransactionPay batch = pendingPayment;
+			pendingPaymentTimeout = batchTimer.schedule(() -> flushPayments(batch), paymentBatchWindowSeconds, TimeUnit.SECONDS);
+		} else
+			pendingPayment.addUnits(units, amount, message);
+
+		if (pendingPayment.getAmountInUnits() >= paymentBatchMaxUnits)
+			flushPayments();
+	}
+	
+	/**
+	 * Submits the pending batch of unit payments (if any) without waiting for the batch window.
+	 */
+	public synchronized void flushPayments()
+	{
+		flushPayments(pendingPayment);
+	}
+	
+	// only flushes if the given batch is still the pending one, a timeout may fire after a flush by count
+	private synchronized void flushPayments(TangleTransactionPay batch)
+	{
+		if (pendingPayment == null || pendingPayment != batch)
+			return;
+		
+		pendingPaymentTimeout.cancel(false);
+		if (!transactionManager.submit(pendingPayment)) {
+			System.err.println("Payment of " + pendingPayment.getAmountInUnits() + " units not submitted (refunding), units returned to the productionPool");
+			pendingPayment.rollbackUnits();
+		}
+		pendingPayment = null;
+		pendingPaymentTimeout = null;
 	}
 	
 	public synchronized void spreadToUnits(int amount)
@@ -42,6 +117,9 @@ public class TransactionFactory {
 	{
 		if (!transactionManager.isRefundingLock())
 		{
+			// units already produced are paid before refunding
+			flushPayments();
+			
 			List<TransactionInputSource> sources = new ArrayList<TransactionInputSource>(3);
 			sources.add(core.receivingPool);
 			sources.add(core.useablePool);
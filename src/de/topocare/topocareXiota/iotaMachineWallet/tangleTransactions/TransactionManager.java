@@ -1,15 +1,25 @@
 package de.topocare.topocareXiota.iotaMachineWallet.tangleTransactions;
 
-import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiConsumer;
 
+import static de.topocare.topocareXiota.iotaMachineWallet.IotaConfig.*;
+
 import de.topocare.topocareXiota.iotaMachineWallet.IotaMachineWalletCore;
+import de.topocare.topocareXiota.iotaMachineWallet.address.IotaAddress;
 import de.topocare.topocareXiota.iotaMachineWallet.pools.TransactionInputSource;
+import de.topocare.topocareXiota.iotaMachineWallet.tangleMonitoring.ConfirmByInclusion;
 import de.topocare.topocareXiota.iotaMachineWallet.tangleMonitoring.ConfirmOnTangle;
 
 
@@ -31,31 +41,142 @@ public class TransactionManager {
 	public TransactionManager(IotaMachineWalletCore iotaMachineWallet) {
 		this.core = iotaMachineWallet;
 		transactionThreadPool = Executors.newFixedThreadPool(10);
+		powScheduler = new PowScheduler(powWorkers, (a, b) -> core.stateUpdate(a, b));
+		confirmByInclusion.setConfirmationListener(t -> confirmNow(t));
+		confirmOnTangle.setConfirmationListener(address -> {
+			TangleTransaction transaction = awaitingReference.get(address);
+			if (transaction != null)
+				confirmNow(transaction);
+		});
+		deadlines = new HashedTimerWheel<TangleTransaction>(1000, 512, t -> deadlineExpired(t));
+		promotionPolicy = new PromotionPolicy(promotionMinSeconds, promoteOrReattachAfterMinutes * 60L,
+				promotionBackoffFactor, promotionPercentile);
+		refillPlanner = new RefillPlanner(productionPoolLowerBorder, productionPoolUpperBorder,
+				refillRateWindowSeconds, refillSafetyFactor, () -> promotionPolicy.firstIntervalSeconds());
 	}
 	
 	/**
-	 * Adds a new TangleTransaction to be run. Ignored if the refundingLock is set.
-	 * @param runnable The new TangleTransaction.
+	 * Starts the lifecycle of a new TangleTransaction. Ignored if the refundingLock is set.
+	 * @param transaction The new TangleTransaction.
+	 * @return false if the TangleTransaction was ignored, PoolTransactions it already holds must be rolled back by the caller
 	 */
-	public synchronized void submit(Runnable runnable)
+	public synchronized boolean submit(TangleTransaction transaction)
 	{
 		if(isRefundingLock())
 		{
-			return;
+			return false;
 		}
-		transactionCounterPreServer.increment();
-		transactionThreadPool.submit(runnable);
+		powScheduler.registerPreparing();
+		transaction.start(transactionThreadPool);
+		return true;
 	}
 	
 	/**
-	 * Adds a new TangleTransaction to be run, even if refindingLock is set.
-	 * Used for promoting and reattaching.
-	 * @param runnable
+	 * Starts the lifecycle of a new TangleTransaction, even if refindingLock is set.
+	 * Used for the further bundles of a split refund.
+	 * @param transaction The new TangleTransaction.
 	 */
-	public synchronized void submitIgnoreRefundingLock(Runnable runnable)
+	public synchronized void submitIgnoreRefundingLock(TangleTransaction transaction)
 	{
-		transactionCounterPreServer.increment();
-		transactionThreadPool.submit(runnable);
+		powScheduler.registerPreparing();
+		transaction.start(transactionThreadPool);
+	}
+	
+	/**
+	 * Counts a transition of a TangleTransaction, called by TangleTransaction.transition.
+	 */
+	void transitioned(TangleTransaction.State from, TangleTransaction.State to) {
+		if (from != TangleTransaction.State.created)
+			lifecycle.get(from).decrementAndGet();
+		lifecycle.get(to).incrementAndGet();
+	}
+	
+	/**
+	 * @return number of TangleTransactions per state, done and failed since program start
+	 */
+	public String lifecycleToString() {
+		StringBuilder str = new StringBuilder();
+		for (TangleTransaction.State state : TangleTransaction.State.values())
+			if (state != TangleTransaction.State.created)
+				str.append(state).append(": ").append(lifecycle.get(state).get()).append("  ");
+		return str.toString().trim();
+	}
+
+
+	/**
+	 * Adds a TangleTransaction attached before a restart to the transactions waiting for confirmation.
+	 * 
+	 * @param transaction The restored TangleTransaction.
+	 * @param tails The tail hashes of its attachments.
+	 */
+	public void resumeConfirmation(RecoveredTangleTransaction transaction, List<String> tails) {
+		registerForConfirmation(transaction, tails);
+		transaction.transition(TangleTransaction.State.awaitingConfirmation);
+		awaitConfirmation(transaction);
+	}
+
+	/**
+	 * Adds an attached TangleTransaction to the transactions waiting for confirmation and schedules its deadline for
+	 * promotion/reattachment.
+	 * 
+	 * @param transaction The attached (or promoted/reattached) TangleTransaction.
+	 */
+	void awaitConfirmation(TangleTransaction transaction) {
+		transactionsAtConfirmation.add(transaction);
+		transsactionCounterAtConfirmation.increment();
+		if (transaction.canReattach())
+			deadlines.schedule(transaction,
+					promotionPolicy.nextDelayMillis(transaction.getPromotionAndReattachCount()));
+		// the confirmation may have arrived during promotion/reattachment
+		confirmNow(transaction);
+	}
+
+	/**
+	 * Checks a TangleTransaction reported as confirmed by ConfirmByInclusion, ConfirmOnTangle or a ConfirmationFeed,
+	 * committing its PoolTransactions.
+	 * 
+	 * @param transaction The confirmed TangleTransaction.
+	 */
+	void confirmNow(TangleTransaction transaction) {
+		if (transaction.checkConfirmation() && release(transaction))
+			transsactionCounterAtConfirmation.decrement();
+	}
+
+	// called by the HashedTimerWheel when a TangleTransaction was not confirmed in time
+	private void deadlineExpired(TangleTransaction transaction) {
+		if (!release(transaction))
+			return;
+		if (!transaction.checkConfirmation())
+			transaction.promoteOrReattachLater();
+		transsactionCounterAtConfirmation.decrement();
+	}
+
+	// removes a TangleTransaction from the ones waiting for confirmation, false if it was not waiting
+	private boolean release(TangleTransaction transaction) {
+		if (!transactionsAtConfirmation.remove(transaction))
+			return false;
+		deadlines.cancel(transaction);
+		if (transaction.refForConfirmation != null)
+			awaitingReference.remove(transaction.refForConfirmation, transaction);
+		return true;
+	}
+
+	/**
+	 * Registers an attached TangleTransaction at ConfirmByInclusion, if enabled (IotaConfig) and the tails are known.
+	 * Otherwise the balance of its reference address is expected by ConfirmOnTangle.
+	 * 
+	 * @param transaction The attached TangleTransaction.
+	 * @param tails The tail hashes of its attachments.
+	 */
+	void registerForConfirmation(TangleTransaction transaction, List<String> tails) {
+		if (confirmationByInclusion && !tails.isEmpty())
+			tails.forEach(tail -> confirmByInclusion.registerTail(transaction, tail));
+		else if (transaction.refForConfirmation != null) {
+			awaitingReference.put(transaction.refForConfirmation, transaction);
+			confirmOnTangle.registerForConfirmation(transaction.refForConfirmation, transaction.refValue);
+		}
+		else
+			System.err.println("TangleTransaction has neither tail nor reference address, can't be confirmed");
 	}
 
 
@@ -63,24 +184,50 @@ public class TransactionManager {
 	 * The ConfirmOnTangle object used for confirmations of TangeTransactions managed by this TransactionManager.
 	 */
 	public ConfirmOnTangle confirmOnTangle = new ConfirmOnTangle();
-	
+
+	/**
+	 * The ConfirmByInclusion object used for confirmations of TangeTransactions by their tail hashes.
+	 */
+	public ConfirmByInclusion confirmByInclusion = new ConfirmByInclusion();
+
+	/**
+	 * TangleTransactions confirmed by ConfirmOnTangle, by reference address.
+	 */
+	private Map<IotaAddress, TangleTransaction> awaitingReference = Collections
+			.synchronizedMap(new HashMap<IotaAddress, TangleTransaction>());
+
+	/**
+	 * Deadlines for promotion/reattachment of the TangleTransactions waiting for confirmation.
+	 */
+	public HashedTimerWheel<TangleTransaction> deadlines;
+
+	/**
+	 * Intervals for promotion/reattachment and statistics of the confirmations.
+	 */
+	public PromotionPolicy promotionPolicy;
 	
 	/**
-	 * How many transactions are currently waiting for proof of work and attachment.
+	 * Plans the refill of the productionPool from the consumption of units.
 	 */
-	public SynchronizedCounterWithConsumer transactionCounterPreServer = new SynchronizedCounterWithConsumer(
-			(a, b) -> core.stateUpdate(a, b));
+	public RefillPlanner refillPlanner;
+	
+	
 	/**
-	 * How many transactions are currently in proof of work and attachment.
+	 * Schedules proof of work and attachment, counts transactions waiting for and in attachment.
 	 */
-	public SynchronizedCounterWithConsumer transactionCounterAtServer = new SynchronizedCounterWithConsumer(
-			(a, b) -> core.stateUpdate(a, b));
+	public PowScheduler powScheduler;
+
 	/**
 	 * How many transactions are currently waiting confirmation.
 	 */
 	public SynchronizedCounterWithConsumer transsactionCounterAtConfirmation = new SynchronizedCounterWithConsumer(
 			(a, b) -> core.stateUpdate(a, b));
 
+	/**
+	 * Counters of tip selection, PoW and signing of the attachments.
+	 */
+	public AttachMetrics attachMetrics = new AttachMetrics();
+
 	/**
 	 * How many reattachments were necessary since program start.
 	 */
@@ -92,21 +239,28 @@ public class TransactionManager {
 	public AtomicInteger promotions = new AtomicInteger(0);
 
 	/**
-	 * List of all TangleTransactions waiting for confirmation.
+	 * All TangleTransactions waiting for confirmation.
 	 */
-	public List<TangleTransaction> transactionsAtConfirmation = Collections
-			.synchronizedList(new ArrayList<TangleTransaction>());
-
+	public Set<TangleTransaction> transactionsAtConfirmation = Collections
+			.synchronizedSet(new LinkedHashSet<TangleTransaction>());
 	
 	/**
-	 * object used for synchronization of the proof of work (only one at the same time)
+	 * Number of TangleTransactions per state of their lifecycle.
 	 */
-	public Object powLock = new Object();
-	
+	private Map<TangleTransaction.State, AtomicInteger> lifecycle = new EnumMap<TangleTransaction.State, AtomicInteger>(
+			TangleTransaction.State.class);
+	{
+		for (TangleTransaction.State state : TangleTransaction.State.values())
+			lifecycle.put(state, new AtomicInteger(0));
+	}
+
 	
 	//locks for refunding
 	private volatile boolean refundingLock = false;
 	private volatile boolean refundingNow = false;
+	// completed when refundingNow is set, replaced after the refund
+	private AtomicReference<CompletableFuture<Void>> drained = new AtomicReference<CompletableFuture<Void>>(
+			new CompletableFuture<Void>());
 
 	public boolean isRefundingLock() {
 		return refundingLock;
@@ -123,6 +277,18 @@ public class TransactionManager {
 
 	public void setRefundingNow(boolean refundingNow) {
 		this.refundingNow = refundingNow;
+		if (refundingNow)
+			drained.get().complete(null);
+		else
+			drained.updateAndGet(f -> f.isDone() ? new CompletableFuture<Void>() : f);
+	}
+	
+	/**
+	 * The drain signal of a refund: completes when all other TangleTransactions are done after the refundingLock
+	 * was set (refundingNow).
+	 */
+	public CompletableFuture<Void> whenDrained() {
+		return drained.get();
 	}
 	
 	public class SynchronizedCounterWithConsumer {
@@ -0,0 +1,96 @@
+package de.topocare.topocareXiota.iotaMachineWallet.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.topocare.topocareXiota.iotaMachineWallet.address.IotaAddress;
+
+/**
+ * Tests the rotation of the PoolJournal by the PoolSnapshot.
+ *
+ * @author Stefan Kuenne [info@topocare.de]
+ */
+public class PoolSnapshotTest {
+
+	// initial size of the mapped journal file
+	private static final long INITIAL_FILE_SIZE = 4 * 1024 * 1024;
+
+	private String journalFile;
+	private String snapshotFile;
+	private Object useablePool = new Object();
+	private List<IotaAddress> addresses = new ArrayList<IotaAddress>();
+
+	@Before
+	public void setUp() throws IOException {
+		File directory = Files.createTempDirectory("poolSnapshotTest").toFile();
+		directory.deleteOnExit();
+		journalFile = new File(directory, "wallet.journal").getPath();
+		snapshotFile = new File(directory, "wallet.snapshot").getPath();
+		for (int keyIndex = 0; keyIndex < 5; keyIndex++)
+			addresses.add(new IotaAddress(address(keyIndex), keyIndex, 100));
+	}
+
+	@Test
+	public void journalStaysBoundedAcrossSnapshots() throws IOException {
+		PoolJournal journal = new PoolJournal(journalFile, 60000);
+		PoolSnapshot snapshot = new PoolSnapshot(snapshotFile, journal);
+		snapshot.reset();
+		journal.registerPool(useablePool, PoolJournal.USEABLE_POOL);
+		journal.recordContent(useablePool, addresses);
+
+		// about 6 MB of records in total, more than the initial file size
+		for (int round = 0; round < 50; round++) {
+			for (int i = 0; i < 2000; i++) {
+				long id = journal.nextId();
+				journal.recordTake(useablePool, id, 100, addresses.subList(0, 1));
+				journal.recordRollback(id);
+			}
+			snapshot.takeSnapshot();
+			assertTrue("journal size after snapshot: " + journal.getSize(),
+					journal.getSize() < PoolJournal.FIRST_RECORD_POSITION + 64);
+		}
+		assertTrue(new File(journalFile).length() <= INITIAL_FILE_SIZE);
+
+		JournalReplay restored = new PoolSnapshot(snapshotFile, new PoolJournal(journalFile, 60000)).restore();
+		assertEquals(5, restored.contentOf(PoolJournal.USEABLE_POOL).size());
+		assertTrue(restored.pendingTransactions.isEmpty());
+	}
+
+	@Test
+	public void recordsAfterRotationAreRestored() throws IOException {
+		PoolJournal journal = new PoolJournal(journalFile, 60000);
+		PoolSnapshot snapshot = new PoolSnapshot(snapshotFile, journal);
+		snapshot.reset();
+		journal.registerPool(useablePool, PoolJournal.USEABLE_POOL);
+		journal.recordContent(useablePool, addresses);
+		snapshot.takeSnapshot();
+
+		// not covered by the snapshot, only in the rotated journal
+		long id = journal.nextId();
+		journal.recordTake(useablePool, id, 100, addresses.subList(0, 1));
+		journal.sync();
+
+		JournalReplay restored = new PoolSnapshot(snapshotFile, new PoolJournal(journalFile, 60000)).restore();
+		assertTrue(restored.pendingTransactions.containsKey(id));
+		assertFalse(restored.contentOf(PoolJournal.USEABLE_POOL).containsKey(0));
+		assertEquals(4, restored.contentOf(PoolJournal.USEABLE_POOL).size());
+	}
+
+	private static String address(int keyIndex) {
+		StringBuilder address = new StringBuilder("TESTADDRESS");
+		address.append((char) ('A' + keyIndex));
+		while (address.length() < 90)
+			address.append('9');
+		return address.toString();
+	}
+}